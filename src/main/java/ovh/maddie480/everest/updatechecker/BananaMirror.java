@@ -1,15 +1,13 @@
 package ovh.maddie480.everest.updatechecker;
 
-import com.jcraft.jsch.*;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashSet;
 import java.util.List;
@@ -31,70 +29,77 @@ public class BananaMirror {
         }
 
         // load the list of files that are already in the mirror.
-        List<String> bananaMirrorList = listFiles();
-        Set<String> toDelete = new HashSet<>(bananaMirrorList);
-
-        for (Map<String, Object> mod : everestUpdateYaml.values()) {
-            // get the mod URL and hash.
-            String modUrl = mod.get(Main.serverConfig.mainServerIsMirror ? "MirrorURL" : "URL").toString();
-            List<String> modHashes = (List<String>) mod.get("xxHash");
-
-            // extract the file ID: only handle valid GameBanana links, as we use the GameBanana URL format to name our file.
-            if (!modUrl.matches("https://gamebanana.com/mmdl/[0-9]+")) {
-                log.warn("Not mirroring {} as it doesn't match the GameBanana URL pattern!", modUrl);
-                continue;
-            }
-            String fileId = modUrl.substring("https://gamebanana.com/mmdl/".length());
-
-            if (bananaMirrorList.contains(fileId)) {
-                log.trace("File {} is already mirrored and will be kept", fileId);
-                toDelete.remove(fileId);
-            } else {
-                log.info("File {} is not currently mirrored! Doing that now.", fileId);
-                downloadFile(modUrl, fileId, modHashes, bananaMirrorList);
-            }
-        }
-
-        // delete all files that disappeared from the database.
-        for (String file : toDelete) {
-            log.info("File {} is mirrored but doesn't exist anymore! Deleting it now.", file);
-            deleteFile(file, bananaMirrorList);
+        try (JournaledSet bananaMirrorList = new JournaledSet(Paths.get("banana_mirror.yaml"))) {
+            mirror(everestUpdateYaml, bananaMirrorList);
         }
     }
 
-    private static void downloadFile(String modUrl, String fileId, List<String> modHashes, List<String> fileList) throws IOException {
-        Path file = FileDownloader.downloadFile(modUrl, modHashes);
-        uploadFile(file, fileId, fileList);
-    }
+    private static void mirror(Map<String, Map<String, Object>> everestUpdateYaml, JournaledSet bananaMirrorList) throws IOException {
+        Set<String> toDelete = bananaMirrorList.toSet();
+
+        // zips containing several mods appear several times, and the list only gets updated once the upload is over
+        Set<String> scheduledUploads = new HashSet<>();
+
+        try (TransferScheduler scheduler = new TransferScheduler("mods")) {
+            for (Map<String, Object> mod : everestUpdateYaml.values()) {
+                // get the mod URL and hash.
+                String modUrl = mod.get(Main.serverConfig.mainServerIsMirror ? "MirrorURL" : "URL").toString();
+                List<String> modHashes = (List<String>) mod.get("xxHash");
+
+                // extract the file ID: only handle valid GameBanana links, as we use the GameBanana URL format to name our file.
+                if (!modUrl.matches("https://gamebanana.com/mmdl/[0-9]+")) {
+                    log.warn("Not mirroring {} as it doesn't match the GameBanana URL pattern!", modUrl);
+                    continue;
+                }
+                String fileId = modUrl.substring("https://gamebanana.com/mmdl/".length());
+
+                if (bananaMirrorList.contains(fileId)) {
+                    log.trace("File {} is already mirrored and will be kept", fileId);
+                    toDelete.remove(fileId);
+                } else if (!scheduledUploads.add(fileId)) {
+                    log.trace("File {} is already being mirrored", fileId);
+                } else {
+                    log.info("File {} is not currently mirrored! Doing that now.", fileId);
+                    scheduler.submit(fileId + ".zip",
+                            () -> downloadFile(modUrl, fileId, modHashes),
+                            () -> addToList(fileId, bananaMirrorList));
+                }
+            }
+
+            // delete all files that disappeared from the database.
+            for (String file : toDelete) {
+                log.info("File {} is mirrored but doesn't exist anymore! Deleting it now.", file);
+                scheduler.submit(file + ".zip",
+                        () -> deleteFile(file),
+                        () -> removeFromList(file, bananaMirrorList));
+            }
 
-    private static List<String> listFiles() throws IOException {
-        try (FileInputStream is = new FileInputStream("banana_mirror.yaml")) {
-            return YamlUtil.load(is);
+            scheduler.finish();
         }
     }
 
-    private static void uploadFile(Path filePath, String fileId, List<String> fileList) throws IOException {
-        // actually upload the file
-        makeSftpAction(Main.serverConfig.bananaMirrorConfig.directory, channel -> channel.put(filePath.toAbsolutePath().toString(), fileId + ".zip"));
+    private static long downloadFile(String modUrl, String fileId, List<String> modHashes) throws IOException {
+        FileDownloader.DownloadResult file = FileDownloader.downloadFile(modUrl, modHashes);
+        makeSftpAction(Main.serverConfig.bananaMirrorConfig.directory, channel -> channel.put(file.path().toAbsolutePath().toString(), fileId + ".zip"));
+        return file.size();
+    }
 
-        // add the file to the list of files that are actually on the mirror, and write it to disk.
+    private static void addToList(String fileId, JournaledSet fileList) throws IOException {
+        // add the file to the list of files that are actually on the mirror, and save it to disk.
         fileList.add(fileId);
-        try (FileOutputStream os = new FileOutputStream("banana_mirror.yaml")) {
-            YamlUtil.dump(fileList, os);
-        }
 
         log.info("Uploaded {}.zip to Banana Mirror", fileId);
         EventListener.handle(listener -> listener.uploadedModToBananaMirror(fileId + ".zip"));
     }
 
-    private static void deleteFile(String fileId, List<String> fileList) throws IOException {
+    private static long deleteFile(String fileId) throws IOException {
         makeSftpAction(Main.serverConfig.bananaMirrorConfig.directory, channel -> channel.rm(fileId + ".zip"));
+        return 0;
+    }
 
-        // delete the file from the list of files that are actually on the mirror, and write it to disk.
+    private static void removeFromList(String fileId, JournaledSet fileList) throws IOException {
+        // delete the file from the list of files that are actually on the mirror, and save it to disk.
         fileList.remove(fileId);
-        try (FileOutputStream os = new FileOutputStream("banana_mirror.yaml")) {
-            YamlUtil.dump(fileList, os);
-        }
 
         log.info("Deleted {}.zip from Banana Mirror", fileId);
         EventListener.handle(listener -> listener.deletedModFromBananaMirror(fileId + ".zip"));
@@ -105,35 +110,13 @@ public class BananaMirror {
         void doSftpAction(ChannelSftp channel) throws SftpException;
     }
 
+    /**
+     * Runs an SFTP action in the given directory of Banana Mirror, retrying if it fails.
+     * Connections are kept open in {@link SftpConnectionPool} until the mirror sync is over.
+     */
     static void makeSftpAction(String directory, SftpAction action) throws IOException {
         ConnectionUtils.runWithRetry(() -> {
-            Session session = null;
-            try {
-                // connect
-                JSch jsch = new JSch();
-                jsch.setKnownHosts(Main.serverConfig.bananaMirrorConfig.knownHosts);
-                session = jsch.getSession(Main.serverConfig.bananaMirrorConfig.username, Main.serverConfig.bananaMirrorConfig.serverAddress);
-                session.setPassword(Main.serverConfig.bananaMirrorConfig.password);
-                session.connect();
-
-                // do the action
-                ChannelSftp sftp = (ChannelSftp) session.openChannel("sftp");
-                sftp.connect();
-                sftp.cd(directory);
-                action.doSftpAction(sftp);
-                sftp.exit();
-
-                // disconnect
-                session.disconnect();
-                session = null;
-            } catch (JSchException | SftpException e) {
-                throw new IOException(e);
-            } finally {
-                if (session != null) {
-                    session.disconnect();
-                }
-            }
-
+            SftpConnectionPool.run(directory, action);
             return null;
         });
     }
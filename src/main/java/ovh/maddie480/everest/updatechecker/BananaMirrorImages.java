@@ -1,117 +1,224 @@
 package ovh.maddie480.everest.updatechecker;
 
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpException;
 import net.coobird.thumbnailator.Thumbnails;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This service mirrors the first 2 screenshots of all mods that are present in mod_search_database.yaml.
+ * The xxHash of the original screenshot is kept for each mirrored image, so that when the same screenshot shows up
+ * under another name, the existing thumbnail can be reused (with a hard link on the server) instead of being converted and uploaded again.
  */
 public class BananaMirrorImages {
     private static final Logger log = LoggerFactory.getLogger(BananaMirrorImages.class);
 
+    // set to false if the server turns out not to support hard links, so that we stop trying
+    private static volatile boolean hardLinksSupported = true;
+
+    // all images that exist in here were uploaded to Banana Mirror
+    private final JournaledSet mirroredImages;
+
+    // mirrored image => xxHash of the original screenshot, for images that were mirrored since hashes are being tracked
+    private final JournaledMap sourceHashes;
+
+    // xxHash of the original screenshot => mirrored images, read by transfer threads to find thumbnails that can be reused
+    private final Map<String, Set<String>> imagesBySourceHash = new ConcurrentHashMap<>();
+
+    // image conversion is CPU-bound, so it gets its own pool sized after the CPU count, separate from the transfers
+    private final ExecutorService thumbnailPool;
+
+    private BananaMirrorImages(JournaledSet mirroredImages, JournaledMap sourceHashes, ExecutorService thumbnailPool) {
+        this.mirroredImages = mirroredImages;
+        this.sourceHashes = sourceHashes;
+        this.thumbnailPool = thumbnailPool;
+
+        for (Map.Entry<String, String> entry : sourceHashes.asMap().entrySet()) {
+            if (mirroredImages.contains(entry.getKey())) {
+                imagesBySourceHash.computeIfAbsent(entry.getValue(), k -> ConcurrentHashMap.newKeySet()).add(entry.getKey());
+            }
+        }
+    }
+
     static void run() throws IOException {
-        // load the list of existing mods.
-        log.debug("Loading mod search database...");
-        List<Map<String, Object>> modSearchDatabase;
-        try (InputStream stream = Files.newInputStream(Paths.get("uploads/modsearchdatabase.yaml"))) {
-            modSearchDatabase = YamlUtil.load(stream);
+        ExecutorService thumbnailPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        // load the list of files that are already in the mirror, along with their hashes.
+        try (JournaledSet mirroredImages = new JournaledSet(Paths.get("banana_mirror_images.yaml"));
+             JournaledMap sourceHashes = new JournaledMap(Paths.get("banana_mirror_images_hashes.yaml"))) {
+
+            new BananaMirrorImages(mirroredImages, sourceHashes, thumbnailPool).mirror();
+        } finally {
+            thumbnailPool.shutdownNow();
         }
+    }
 
-        // load the list of files that are already in the mirror.
-        List<String> bananaMirrorList = listFiles();
-        Set<String> toDelete = new HashSet<>(bananaMirrorList);
-
-        for (Map<String, Object> mod : modSearchDatabase) {
-            List<String> screenshots = (List<String>) mod.get("Screenshots");
-
-            // we want to only mirror the 2 first screenshots.
-            for (int i = 0; i < screenshots.size() && i < 2; i++) {
-                String screenshotUrl = screenshots.get(i);
-                String screenshotId = screenshotUrl.substring("https://images.gamebanana.com/".length(), screenshotUrl.lastIndexOf(".")).replace("/", "_") + ".png";
-
-                if (bananaMirrorList.contains(screenshotId)) {
-                    log.trace("Image {} is already mirrored and will be kept", screenshotId);
-                    toDelete.remove(screenshotId);
-                } else {
-                    // file is new!
-                    log.info("Image {} is not currently mirrored! Doing that now.", screenshotId);
-                    downloadFile(screenshotUrl, screenshotId, bananaMirrorList);
+    private void mirror() throws IOException {
+        Set<String> toDelete = mirroredImages.toSet();
+
+        // the same screenshot can be used by several mods, and the list only gets updated once the upload is over
+        Set<String> scheduledUploads = new HashSet<>();
+
+        try (TransferScheduler scheduler = new TransferScheduler("images");
+             InputStream stream = Files.newInputStream(Paths.get("uploads/modsearchdatabase.yaml"))) {
+
+            // go through the mods of the mod search database one by one, only reading their screenshots
+            log.debug("Reading mod search database...");
+            YamlStreamReader.forEachRecord(stream, Collections.singleton("Screenshots"), mod -> {
+                List<String> screenshots = (List<String>) mod.get("Screenshots");
+
+                // we want to only mirror the 2 first screenshots.
+                for (int i = 0; i < screenshots.size() && i < 2; i++) {
+                    String screenshotUrl = screenshots.get(i);
+                    String screenshotId = screenshotUrl.substring("https://images.gamebanana.com/".length(), screenshotUrl.lastIndexOf(".")).replace("/", "_") + ".png";
+
+                    if (mirroredImages.contains(screenshotId)) {
+                        log.trace("Image {} is already mirrored and will be kept", screenshotId);
+                        toDelete.remove(screenshotId);
+                    } else if (!scheduledUploads.add(screenshotId)) {
+                        log.trace("Image {} is already being mirrored", screenshotId);
+                    } else {
+                        // file is new!
+                        log.info("Image {} is not currently mirrored! Doing that now.", screenshotId);
+                        AtomicReference<String> sourceHash = new AtomicReference<>();
+                        scheduler.submit(screenshotId,
+                                () -> downloadFile(screenshotUrl, screenshotId, sourceHash),
+                                () -> addToList(screenshotId, sourceHash.get()));
+                    }
                 }
+            });
+
+            // delete all files that disappeared from the database.
+            for (String file : toDelete) {
+                log.info("Image {} is mirrored but doesn't exist anymore! Deleting it now.", file);
+                scheduler.submit(file,
+                        () -> deleteFile(file),
+                        () -> removeFromList(file));
             }
-        }
 
-        // delete all files that disappeared from the database.
-        for (String file : toDelete) {
-            log.info("Image {} is mirrored but doesn't exist anymore! Deleting it now.", file);
-            deleteFile(file, bananaMirrorList);
+            scheduler.finish();
         }
     }
 
-    private static void downloadFile(String screenshotUrl, String screenshotId, List<String> fileList) throws IOException {
+    private long downloadFile(String screenshotUrl, String screenshotId, AtomicReference<String> sourceHash) throws IOException {
         // download the screenshot
-        ConnectionUtils.runWithRetry(() -> {
+        byte[] image = ConnectionUtils.runWithRetry(() -> {
             String urlToDownload = screenshotUrl.replace("https://images.gamebanana.com/", "https://files.gamebanana.com/");
-            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(Paths.get("/tmp/updater_image_to_read")))) {
-                IOUtils.copy(new BufferedInputStream(ConnectionUtils.openStreamWithTimeout(urlToDownload)), os);
+            try (InputStream is = ConnectionUtils.openStreamWithTimeout(urlToDownload)) {
+                return IOUtils.toByteArray(is);
             }
+        });
 
-            log.debug("Thumbnailating file...");
+        String hash = DatabaseUpdater.computeXXHash(new ByteArrayInputStream(image));
+        sourceHash.set(hash);
 
-            // minimize it to 220px
-            Thumbnails.of(new File("/tmp/updater_image_to_read"))
-                    .size(220, 220)
-                    .outputFormat("png")
-                    .toFile("/tmp/updater_thumb.png");
+        // if we already have a thumbnail for this exact screenshot, link to it instead of making a new one
+        Set<String> sameImages = imagesBySourceHash.get(hash);
+        if (sameImages != null) {
+            for (String existingImage : sameImages) {
+                if (linkToExistingImage(existingImage, screenshotId)) {
+                    return 0;
+                }
+            }
+        }
 
-            return null;
-        });
+        // minimize it to 220px
+        byte[] thumbnail = waitFor(thumbnailPool.submit(() -> makeThumbnail(image)));
 
         // upload to Banana Mirror
-        uploadFile(Paths.get("/tmp/updater_thumb.png"), screenshotId, fileList);
-        FileUtils.forceDelete(new File("/tmp/updater_image_to_read"));
-        FileUtils.forceDelete(new File("/tmp/updater_thumb.png"));
+        BananaMirror.makeSftpAction(Main.serverConfig.bananaMirrorConfig.imagesDirectory,
+                channel -> channel.put(new ByteArrayInputStream(thumbnail), screenshotId));
+        return thumbnail.length;
     }
 
-    private static List<String> listFiles() throws IOException {
-        try (FileInputStream is = new FileInputStream("banana_mirror_images.yaml")) {
-            return YamlUtil.load(is);
+    /**
+     * Makes a hard link to an image that is already on Banana Mirror.
+     * This is not retried: if it fails for any reason, the image should just be uploaded.
+     *
+     * @return true if it worked, false otherwise
+     */
+    private static boolean linkToExistingImage(String existingImage, String screenshotId) {
+        if (!hardLinksSupported) return false;
+
+        try {
+            SftpConnectionPool.run(Main.serverConfig.bananaMirrorConfig.imagesDirectory, channel -> channel.hardlink(existingImage, screenshotId));
+            log.debug("Image {} is the same as {}, linked it instead of uploading it", screenshotId, existingImage);
+            return true;
+        } catch (IOException e) {
+            if (e.getCause() instanceof SftpException sftpException && sftpException.id == ChannelSftp.SSH_FX_OP_UNSUPPORTED) {
+                log.warn("Banana Mirror does not support hard links, images will always be uploaded");
+                hardLinksSupported = false;
+            } else {
+                log.warn("Could not link {} to {}, uploading it instead", screenshotId, existingImage, e);
+            }
+            return false;
         }
     }
 
-    private static void uploadFile(Path filePath, String fileId, List<String> fileList) throws IOException {
-        // actually upload the file
-        BananaMirror.makeSftpAction(Main.serverConfig.bananaMirrorConfig.imagesDirectory,
-                channel -> channel.put(filePath.toAbsolutePath().toString(), fileId));
+    private static byte[] makeThumbnail(byte[] image) throws IOException {
+        log.debug("Thumbnailating file...");
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        Thumbnails.of(new ByteArrayInputStream(image))
+                .size(220, 220)
+                .outputFormat("png")
+                .toOutputStream(os);
+        return os.toByteArray();
+    }
 
-        // add the file to the list of files that are actually on the mirror, and write it to disk.
-        fileList.add(fileId);
-        try (FileOutputStream os = new FileOutputStream("banana_mirror_images.yaml")) {
-            YamlUtil.dump(fileList, os);
+    private static byte[] waitFor(Future<byte[]> thumbnail) throws IOException {
+        try {
+            return thumbnail.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for thumbnail");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause());
         }
+    }
+
+    private void addToList(String fileId, String sourceHash) throws IOException {
+        // add the file to the list of files that are actually on the mirror, and save it to disk.
+        mirroredImages.add(fileId);
+        sourceHashes.put(fileId, sourceHash);
+        imagesBySourceHash.computeIfAbsent(sourceHash, k -> ConcurrentHashMap.newKeySet()).add(fileId);
 
         log.info("Uploaded {} to Banana Mirror", fileId);
         EventListener.handle(listener -> listener.uploadedImageToBananaMirror(fileId));
     }
 
-    private static void deleteFile(String fileId, List<String> fileList) throws IOException {
+    private static long deleteFile(String fileId) throws IOException {
         BananaMirror.makeSftpAction(Main.serverConfig.bananaMirrorConfig.imagesDirectory, channel -> channel.rm(fileId));
+        return 0;
+    }
+
+    private void removeFromList(String fileId) throws IOException {
+        // delete the file from the list of files that are actually on the mirror, and save it to disk.
+        mirroredImages.remove(fileId);
 
-        // delete the file from the list of files that are actually on the mirror, and write it to disk.
-        fileList.remove(fileId);
-        try (FileOutputStream os = new FileOutputStream("banana_mirror_images.yaml")) {
-            YamlUtil.dump(fileList, os);
+        String sourceHash = sourceHashes.get(fileId);
+        if (sourceHash != null) {
+            sourceHashes.remove(fileId);
+            Set<String> sameImages = imagesBySourceHash.get(sourceHash);
+            if (sameImages != null) sameImages.remove(fileId);
         }
 
         log.info("Deleted {} from Banana Mirror", fileId);
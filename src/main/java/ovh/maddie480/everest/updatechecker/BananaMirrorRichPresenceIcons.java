@@ -8,12 +8,9 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * This service mirrors the Rich Presence icons of all files on GameBanana, based on the mod file database.
@@ -27,6 +24,9 @@ public class BananaMirrorRichPresenceIcons {
     // all hashes that exist in here were uploaded to Banana Mirror
     private final Map<String, Set<String>> hashesToFiles;
 
+    // changes to the maps above are saved here, and the whole state is only written to the YAML file once in a while
+    private final StateJournal journal;
+
     private boolean changesHappened = false;
 
     public BananaMirrorRichPresenceIcons() throws IOException {
@@ -38,62 +38,66 @@ public class BananaMirrorRichPresenceIcons {
 
         filesToHashes = listToSet(map.get("FilesToHashes"));
         hashesToFiles = listToSet(map.get("HashesToFiles"));
-    }
 
-    public void update() throws IOException {
-        Set<String> deletedFileIds = new HashSet<>(filesToHashes.keySet());
+        journal = StateJournal.open(Paths.get("banana_mirror_rich_presence_icons.yaml"), this::saveData);
+        for (String record : journal.getRecordsToReplay()) {
+            replay(record);
+        }
+    }
 
-        // load mod list
-        List<String> mods;
-        try (InputStream is = Files.newInputStream(Paths.get("modfilesdatabase/list.yaml"))) {
-            mods = YamlUtil.load(is);
+    /**
+     * Mirrors the icons of new files, and deletes the icons of files that are gone.
+     *
+     * @param modFileIds        The IDs of the files of each mod (itemtype/itemid), as saved in the mod files database
+     * @param richPresenceIcons The icons that were found in the files that were analyzed during this update, by file ID
+     */
+    public void update(Map<String, List<String>> modFileIds, Map<String, List<String>> richPresenceIcons) throws IOException {
+        try {
+            updateInner(modFileIds, richPresenceIcons);
+        } finally {
+            journal.close();
         }
+    }
+
+    private void updateInner(Map<String, List<String>> modFileIds, Map<String, List<String>> detectedIcons) throws IOException {
+        Set<String> deletedFileIds = new HashSet<>(filesToHashes.keySet());
 
         Set<String> nsfwMods = new HashSet<>();
         try (InputStream is = Files.newInputStream(Paths.get("uploads/nsfw_mods.yaml"))) {
             nsfwMods.addAll(YamlUtil.<List<String>>load(is));
         }
 
-        for (String mod : mods) {
+        for (Map.Entry<String, List<String>> modEntry : modFileIds.entrySet()) {
+            String mod = modEntry.getKey();
+
             // do NOT upload Rich Presence icons for mods tagged as NSFW!
             if (nsfwMods.contains(mod)) {
                 log.trace("Skipping mod {} as it is NSFW", mod);
                 continue;
             }
 
-            // load file list for the mod
-            List<String> files;
-            try (InputStream is = Files.newInputStream(Paths.get("modfilesdatabase/" + mod + "/info.yaml"))) {
-                Map<String, Object> info = YamlUtil.load(is);
-                files = (List<String>) info.get("Files");
-            }
-
-            for (String file : files) {
+            for (String file : modEntry.getValue()) {
                 if (filesToHashes.containsKey(file)) {
                     log.trace("File {} was already checked, moving on", file);
                     deletedFileIds.remove(file);
                     continue;
                 }
 
-                // load file listing for the mod, so that we know if it has any map icons
-                List<String> fileList;
-                try (InputStream is = Files.newInputStream(Paths.get("modfilesdatabase/" + mod + "/" + file + ".yaml"))) {
-                    fileList = YamlUtil.load(is);
+                List<String> richPresenceIcons = detectedIcons.get(file);
+                if (richPresenceIcons == null) {
+                    // the file was not analyzed during this update, but we never checked it either: this only happens for
+                    // mods that are not tagged as NSFW anymore, files we crashed before getting to, and files that were
+                    // skipped before files without icons were remembered. Read its listing from the mod files database.
+                    richPresenceIcons = findRichPresenceIcons(loadFileList(mod, file));
                 }
-
-                List<String> richPresenceIcons = fileList.stream()
-                        .filter(fileName -> fileName.startsWith("Graphics/Atlases/Gui/")
-                                && fileName.endsWith(".png")
-                                && (fileName.startsWith("Graphics/Atlases/Gui/areas/")
-                                    || fileList.contains(fileName.substring(0, fileName.length() - 4) + "_back.png"))
-                                && !fileName.endsWith("_back.png")
-                                && !fileName.endsWith("hover.png"))
-                        .collect(Collectors.toList());
-
                 log.trace("Icons detected in file {}: {}", file, richPresenceIcons);
 
                 if (!richPresenceIcons.isEmpty()) {
-                    processNewFile(file, richPresenceIcons);
+                    processNewFile(file);
+                } else {
+                    // remember that this file has no icons, so that we don't check it again
+                    filesToHashes.put(file, new HashSet<>());
+                    journal.append("file-put " + file + " ");
                 }
             }
         }
@@ -112,62 +116,72 @@ public class BananaMirrorRichPresenceIcons {
         }
     }
 
-    private void processNewFile(String fileId, List<String> filesToProcess) throws IOException {
-        // download the mod
-        Path file = FileDownloader.downloadFile("https://gamebanana.com/mmdl/" + fileId);
+    private static List<String> loadFileList(String mod, String file) throws IOException {
+        try (InputStream is = Files.newInputStream(Paths.get("modfilesdatabase/" + mod + "/" + file + ".yaml"))) {
+            return YamlUtil.load(is);
+        }
+    }
 
-        Set<String> hashes = new HashSet<>();
+    /**
+     * Finds the files that can be used as Rich Presence icons (chapter icons) in a zip's file listing.
+     */
+    static List<String> findRichPresenceIcons(List<String> fileList) {
+        Set<String> files = new HashSet<>(fileList);
+
+        return fileList.stream()
+                .filter(fileName -> fileName.startsWith("Graphics/Atlases/Gui/")
+                        && fileName.endsWith(".png")
+                        && (fileName.startsWith("Graphics/Atlases/Gui/areas/")
+                            || files.contains(fileName.substring(0, fileName.length() - 4) + "_back.png"))
+                        && !fileName.endsWith("_back.png")
+                        && !fileName.endsWith("hover.png"))
+                .collect(Collectors.toList());
+    }
 
-        // get the files to process from it!
-        try (ZipFile zip = ZipFileWithAutoEncoding.open(file.toAbsolutePath().toString())) {
-            for (String fileToProcess : filesToProcess) {
-                ZipEntry entry = zip.getEntry(fileToProcess);
+    private void processNewFile(String fileId) throws IOException {
+        // download the mod, and get the icons from it
+        String fileUrl = "https://gamebanana.com/mmdl/" + fileId;
+        ZipAnalysis analysis = ZipAnalyzer.analyze(fileUrl);
+        if (analysis.zipError != null) throw analysis.zipError;
+        if (analysis.richPresenceIconError != null) throw analysis.richPresenceIconError;
 
-                // compute the hash to check if we already have the icon.
-                String hash;
-                try (InputStream is = zip.getInputStream(entry)) {
-                    hash = DatabaseUpdater.computeXXHash(is);
-                }
-                hashes.add(hash);
+        Set<String> hashes = new HashSet<>();
 
-                // check if it is new or not, send it if it is!
-                if (!hashesToFiles.containsKey(hash)) {
-                    log.info("New file icon {} with hash {}! Uploading it.", fileToProcess, hash);
-                    sendNewFile(fileId, zip, entry, hash);
-                } else {
-                    log.debug("Already existing file icon {} with hash {}. Saving it.", fileToProcess, hash);
-                    hashesToFiles.get(hash).add(fileId);
-                    saveData();
-                }
+        for (ZipAnalysis.RichPresenceIcon icon : analysis.richPresenceIcons) {
+            String hash = icon.xxHash();
+            hashes.add(hash);
+
+            // check if it is new or not, send it if it is!
+            if (!hashesToFiles.containsKey(hash)) {
+                log.info("New file icon {} with hash {}! Uploading it.", icon.path(), hash);
+                sendNewFile(fileId, fileUrl, icon);
+            } else {
+                log.debug("Already existing file icon {} with hash {}. Saving it.", icon.path(), hash);
+                hashesToFiles.get(hash).add(fileId);
+                journal.append("hash-add " + hash + " " + fileId);
             }
         }
 
         // save all the hashes that are in the file
         filesToHashes.put(fileId, hashes);
-        saveData();
+        journal.append("file-put " + fileId + " " + String.join(",", hashes));
     }
 
-    private void sendNewFile(String fileId, ZipFile zip, ZipEntry entry, String hash) throws IOException {
-        // extract file from zip
-        Path filePath = Paths.get("/tmp/" + hash + ".png");
-        try (InputStream is = zip.getInputStream(entry)) {
-            FileUtils.copyInputStreamToFile(is, filePath.toFile());
-        }
+    private void sendNewFile(String fileId, String fileUrl, ZipAnalysis.RichPresenceIcon icon) throws IOException {
+        String fileName = icon.xxHash() + ".png";
+        byte[] contents = ZipAnalyzer.readRichPresenceIcon(fileUrl, icon);
 
         // send it
         BananaMirror.makeSftpAction(Main.serverConfig.bananaMirrorConfig.richPresenceIconsDirectory,
-                channel -> channel.put(filePath.toAbsolutePath().toString(), filePath.getFileName().toString()));
-        EventListener.handle(listener -> listener.uploadedRichPresenceIconToBananaMirror(filePath.getFileName().toString(), fileId));
+                channel -> channel.put(new ByteArrayInputStream(contents), fileName));
+        EventListener.handle(listener -> listener.uploadedRichPresenceIconToBananaMirror(fileName, fileId));
         changesHappened = true;
 
         // register it in our data file
         Set<String> fileSet = new HashSet<>();
         fileSet.add(fileId);
-        hashesToFiles.put(hash, fileSet);
-        saveData();
-
-        // delete it from temp directory
-        FileUtils.forceDelete(filePath.toFile());
+        hashesToFiles.put(icon.xxHash(), fileSet);
+        journal.append("hash-add " + icon.xxHash() + " " + fileId);
     }
 
     private void processDeletedFile(String fileId) throws IOException {
@@ -178,6 +192,7 @@ public class BananaMirrorRichPresenceIcons {
             }
 
             hashesToFiles.get(hash).remove(fileId);
+            journal.append("hash-remove " + hash + " " + fileId);
             log.trace("Remaining files for hash {}: {}", hash, hashesToFiles.get(hash));
 
             if (hashesToFiles.get(hash).isEmpty()) {
@@ -187,22 +202,38 @@ public class BananaMirrorRichPresenceIcons {
                 changesHappened = true;
 
                 hashesToFiles.remove(hash);
-                saveData();
+                journal.append("hash-delete " + hash);
             }
         }
 
         filesToHashes.remove(fileId);
-        saveData();
+        journal.append("file-delete " + fileId);
     }
 
-    private void saveData() throws IOException {
+    /**
+     * Applies a change that was saved to the journal. Applying a change twice gives the same result as applying it once.
+     */
+    private void replay(String record) {
+        String[] parts = record.split(" ", -1);
+        switch (parts[0]) {
+            case "hash-add" -> hashesToFiles.computeIfAbsent(parts[1], k -> new HashSet<>()).add(parts[2]);
+            case "hash-remove" -> {
+                if (hashesToFiles.containsKey(parts[1])) hashesToFiles.get(parts[1]).remove(parts[2]);
+            }
+            case "hash-delete" -> hashesToFiles.remove(parts[1]);
+            case "file-put" -> filesToHashes.put(parts[1],
+                    parts[2].isEmpty() ? new HashSet<>() : new HashSet<>(Arrays.asList(parts[2].split(","))));
+            case "file-delete" -> filesToHashes.remove(parts[1]);
+            default -> log.warn("Ignoring unknown record in journal: {}", record);
+        }
+    }
+
+    private void saveData(OutputStream os) throws IOException {
         Map<String, Map<String, List<String>>> map = new HashMap<>();
         map.put("FilesToHashes", setToList(filesToHashes));
         map.put("HashesToFiles", setToList(hashesToFiles));
 
-        try (FileOutputStream os = new FileOutputStream("banana_mirror_rich_presence_icons.yaml")) {
-            YamlUtil.dump(map, os);
-        }
+        YamlUtil.dump(map, os);
     }
 
     private Map<String, Set<String>> listToSet(Map<String, List<String>> list) {
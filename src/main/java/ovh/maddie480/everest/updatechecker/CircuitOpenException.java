@@ -0,0 +1,13 @@
+package ovh.maddie480.everest.updatechecker;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a host that failed too many times in a row recently,
+ * so that callers give up quickly instead of waiting for timeouts and retries while the host is down.
+ */
+public class CircuitOpenException extends IOException {
+    public CircuitOpenException(String host, long remainingMillis) {
+        super("Requests to " + host + " are suspended for " + remainingMillis + " more ms after too many consecutive failures");
+    }
+}
@@ -5,53 +5,104 @@ import org.json.JSONException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 import java.util.zip.GZIPInputStream;
 
 public final class ConnectionUtils {
     private static final Logger logger = LoggerFactory.getLogger(ConnectionUtils.class);
 
+    private static final Duration READ_TIMEOUT = Duration.ofSeconds(30);
+
+    // shared by all requests, so that connections (and TLS sessions) to GameBanana are reused from one request to the next
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    private static final Map<String, HostCircuit> circuits = new ConcurrentHashMap<>();
+
     /**
-     * Creates an HttpURLConnection to the specified URL, getting sure timeouts are set
+     * Sends a GET request to the specified URL, getting sure timeouts are set
      * (connect timeout = 10 seconds, read timeout = 30 seconds).
+     * The body of the response should be closed once it is not needed anymore.
      *
      * @param url The URL to connect to
-     * @return An HttpURLConnection to this URL
+     * @return The response, once its headers were received
+     * @throws IOException If an exception occured while trying to connect
+     */
+    public static HttpResponse<InputStream> openConnectionWithTimeout(String url) throws IOException {
+        return openConnectionWithTimeout(url, "GET");
+    }
+
+    /**
+     * Sends a request to the specified URL, getting sure timeouts are set
+     * (connect timeout = 10 seconds, read timeout = 30 seconds).
+     * The body of the response should be closed once it is not needed anymore.
+     *
+     * @param url    The URL to connect to
+     * @param method The HTTP method to use (GET or HEAD)
+     * @return The response, once its headers were received
      * @throws IOException If an exception occured while trying to connect
      */
-    public static HttpURLConnection openConnectionWithTimeout(String url) throws IOException {
-        URLConnection con;
+    public static HttpResponse<InputStream> openConnectionWithTimeout(String url, String method) throws IOException {
+        HttpRequest request = buildRequest(url, method);
+        HostCircuit circuit = getCircuit(request.uri());
+        boolean trial = circuit.check();
 
+        HttpResponse<InputStream> response = null;
+        Throwable error = null;
         try {
-            con = new URI(url).toURL().openConnection();
-        } catch (URISyntaxException e) {
-            throw new IOException(e);
+            RequestGovernor.acquire(url);
+            response = httpClient.send(request, r -> new TimeoutBodySubscriber());
+            return response;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting to " + url);
+        } catch (IOException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            circuit.recordOutcome(trial, response, error);
         }
-
-        con.setRequestProperty("User-Agent", "Everest-Update-Checker/0.5.0 (+https://github.com/maddie480/EverestUpdateCheckerServer)");
-        con.setRequestProperty("Accept-Encoding", "gzip");
-
-        con.setConnectTimeout(10000);
-        con.setReadTimeout(30000);
-
-        return (HttpURLConnection) con;
     }
 
     /**
-     * Turns an HTTP connection into an input stream, going through gzip decoding if necessary.
+     * Turns an HTTP response into an input stream, going through gzip decoding if necessary.
      *
-     * @param con The connection
-     * @return An input stream that reads from the connection
-     * @throws IOException If an exception occured while trying to connect
+     * @param response The response
+     * @return An input stream that reads from the response
+     * @throws IOException If the server responded with an error code
      */
-    public static InputStream connectionToInputStream(HttpURLConnection con) throws IOException {
-        InputStream is = con.getInputStream();
-        if ("gzip".equals(con.getContentEncoding())) {
+    public static InputStream connectionToInputStream(HttpResponse<InputStream> response) throws IOException {
+        InputStream is = response.body();
+
+        if (response.statusCode() >= 400) {
+            is.close();
+            if (response.statusCode() == 404) throw new FileNotFoundException(response.uri().toString());
+            throw new HttpStatusException(response.uri().toString(), response.statusCode(), getRetryAfterMillis(response));
+        }
+
+        if ("gzip".equals(response.headers().firstValue("Content-Encoding").orElse(null))) {
             return new GZIPInputStream(is);
         }
         return is;
@@ -70,31 +121,356 @@ public final class ConnectionUtils {
     }
 
     /**
-     * Runs a task (typically a network operation), retrying up to 3 times if it throws an IOException.
+     * Creates a stream to the specified URL without blocking the calling thread, getting sure timeouts are set
+     * (connect timeout = 10 seconds, read timeout = 30 seconds). This goes through the same circuit breaker and
+     * request budget as {@link #openStreamWithTimeout(String)}, except that an exhausted budget delays the request
+     * instead of blocking the caller.
+     *
+     * @param url The URL to connect to
+     * @return A future that completes with a stream to this URL once the response headers were received,
+     * or fails with an IOException (wrapped in a CompletionException) if an exception occured while trying to connect
+     */
+    public static CompletableFuture<InputStream> openStreamWithTimeoutAsync(String url) {
+        HttpRequest request;
+        HostCircuit circuit;
+        boolean trial;
+        try {
+            request = buildRequest(url, "GET");
+            circuit = getCircuit(request.uri());
+            trial = circuit.check();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        Executor delayedExecutor = CompletableFuture.delayedExecutor(RequestGovernor.reserve(url), TimeUnit.NANOSECONDS);
+
+        return CompletableFuture.supplyAsync(() -> request, delayedExecutor)
+                .thenCompose(delayedRequest -> httpClient.sendAsync(delayedRequest, r -> new TimeoutBodySubscriber()))
+                .whenComplete((response, error) ->
+                        circuit.recordOutcome(trial, response, error instanceof CompletionException ? error.getCause() : error))
+                .thenApply(response -> {
+                    try {
+                        return connectionToInputStream(response);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    /**
+     * Reads the Retry-After header of a response, that can either be a number of seconds or a date.
+     *
+     * @return The delay in milliseconds, or -1 if there is no valid header
+     */
+    private static long getRetryAfterMillis(HttpResponse<?> response) {
+        String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+        if (retryAfter == null) return -1;
+
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+    }
+
+    private static HostCircuit getCircuit(URI uri) {
+        return circuits.computeIfAbsent(uri.getHost() == null ? "" : uri.getHost(), HostCircuit::new);
+    }
+
+    /**
+     * Circuit breaker for a host: after too many consecutive failures (connection errors, 5xx or 429 responses),
+     * requests to the host fail immediately for a while. After that delay, one request is let through to check if the host is back.
+     */
+    private static class HostCircuit {
+        private final String host;
+        private int consecutiveFailures = 0;
+        private long openUntil = 0;
+        private boolean trialInProgress = false;
+
+        private HostCircuit(String host) {
+            this.host = host;
+        }
+
+        /**
+         * @return true if this request is the trial request, in which case this should be given to {@link #recordOutcome} once it is over
+         */
+        private synchronized boolean check() throws CircuitOpenException {
+            if (consecutiveFailures < getCircuitBreakerThreshold()) return false;
+
+            long now = System.currentTimeMillis();
+            if (now < openUntil || trialInProgress) {
+                throw new CircuitOpenException(host, Math.max(0, openUntil - now));
+            }
+
+            // the delay is over: let this request through, and keep failing fast until we know how it went
+            logger.info("Sending a trial request to {} after {} consecutive failures", host, consecutiveFailures);
+            trialInProgress = true;
+            return true;
+        }
+
+        private synchronized void endTrial() {
+            trialInProgress = false;
+        }
+
+        /**
+         * Records how a request went, for both the blocking and the asynchronous ways of sending requests.
+         * Requests that were interrupted or failed with an unexpected exception tell nothing about the host.
+         *
+         * @param trial    Whether {@link #check()} returned true for this request
+         * @param response The response, or null if there was none
+         * @param error    The exception the request failed with, or null if there was none
+         */
+        private void recordOutcome(boolean trial, HttpResponse<?> response, Throwable error) {
+            try {
+                if (response != null) {
+                    recordResponse(response.statusCode());
+                } else if (error instanceof IOException && !(error instanceof InterruptedIOException)) {
+                    recordFailure();
+                }
+            } finally {
+                // if the trial request ended without telling whether the host is back,
+                // let the next request try again instead of keeping the host suspended forever
+                if (trial) endTrial();
+            }
+        }
+
+        private void recordResponse(int statusCode) {
+            if (statusCode >= 500 || statusCode == 429) {
+                recordFailure();
+            } else {
+                recordSuccess();
+            }
+        }
+
+        private synchronized void recordSuccess() {
+            if (consecutiveFailures >= getCircuitBreakerThreshold()) {
+                logger.info("{} is responding again, resuming requests", host);
+            }
+            consecutiveFailures = 0;
+            trialInProgress = false;
+        }
+
+        private synchronized void recordFailure() {
+            consecutiveFailures++;
+            trialInProgress = false;
+
+            if (consecutiveFailures >= getCircuitBreakerThreshold()) {
+                long cooldown = Main.serverConfig != null ? Main.serverConfig.circuitBreakerCooldownSeconds * 1000L : 60_000L;
+                openUntil = System.currentTimeMillis() + cooldown;
+                logger.warn("{} failed {} times in a row, suspending requests to it for {} ms", host, consecutiveFailures, cooldown);
+            }
+        }
+
+        private static int getCircuitBreakerThreshold() {
+            return Main.serverConfig != null ? Main.serverConfig.circuitBreakerThreshold : 5;
+        }
+    }
+
+    private static HttpRequest buildRequest(String url, String method) throws IOException {
+        try {
+            return HttpRequest.newBuilder(new URI(url))
+                    .method(method, HttpRequest.BodyPublishers.noBody())
+                    .header("User-Agent", "Everest-Update-Checker/0.5.0 (+https://github.com/maddie480/EverestUpdateCheckerServer)")
+                    .header("Accept-Encoding", "gzip")
+                    .timeout(READ_TIMEOUT)
+                    .build();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Exposes the body of a response as an input stream, like {@link HttpResponse.BodySubscribers#ofInputStream()} does,
+     * except that reads time out if the server does not send anything for {@link #READ_TIMEOUT}.
+     * The request timeout of the HTTP client only applies until headers are received, so this keeps a stalled download from hanging forever.
+     */
+    private static class TimeoutBodySubscriber implements HttpResponse.BodySubscriber<InputStream> {
+        private static final Object END_OF_BODY = new Object();
+
+        // contains lists of buffers, then either END_OF_BODY or the Throwable that ended the body
+        private final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        private final CompletableFuture<InputStream> body = new CompletableFuture<>();
+        private volatile Flow.Subscription subscription;
+
+        @Override
+        public CompletionStage<InputStream> getBody() {
+            return body;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+            body.complete(new BodyInputStream());
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            received.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            received.add(END_OF_BODY);
+        }
+
+        private class BodyInputStream extends InputStream {
+            private Iterator<ByteBuffer> buffers = Collections.emptyIterator();
+            private ByteBuffer current = null;
+            private boolean ended = false;
+            private boolean closed = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : (b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (closed) throw new IOException("Stream closed");
+                if (len == 0) return 0;
+
+                while (current == null || !current.hasRemaining()) {
+                    if (buffers.hasNext()) {
+                        current = buffers.next();
+                    } else if (ended || !waitForBuffers()) {
+                        return -1;
+                    }
+                }
+
+                int read = Math.min(len, current.remaining());
+                current.get(b, off, read);
+                return read;
+            }
+
+            @SuppressWarnings("unchecked")
+            private boolean waitForBuffers() throws IOException {
+                Object next;
+                try {
+                    next = received.poll(READ_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new InterruptedIOException("Interrupted while reading response");
+                }
+
+                if (next == null) {
+                    close();
+                    throw new SocketTimeoutException("Read timed out");
+                } else if (next == END_OF_BODY) {
+                    ended = true;
+                    return false;
+                } else if (next instanceof IOException e) {
+                    ended = true;
+                    throw e;
+                } else if (next instanceof Throwable t) {
+                    ended = true;
+                    throw new IOException(t);
+                }
+
+                buffers = ((List<ByteBuffer>) next).iterator();
+                subscription.request(1);
+                return true;
+            }
+
+            @Override
+            public void close() {
+                if (closed) return;
+                closed = true;
+
+                // if the body wasn't fully read, this closes the connection instead of returning it to the pool
+                if (!ended) subscription.cancel();
+            }
+        }
+    }
+
+    /**
+     * Runs a task (typically a network operation), retrying it if it throws an IOException.
+     * The delay between tries grows exponentially (with some randomness to avoid all threads retrying at once),
+     * and depends on the error: rate limiting and unavailability errors honor the Retry-After header or wait longer,
+     * while client errors (like 404) and suspended hosts are not retried at all.
+     * The number of tries and delays can be configured with RetryMaxTries, RetryBaseDelayMs and RetryMaxDelayMs.
      *
      * @param task The task to run and retry
      * @param <T>  The return type for the task
      * @return What the task returned
-     * @throws IOException If the task failed 3 times
+     * @throws IOException If the task failed on all tries, or with an error that is not worth retrying
      */
     public static <T> T runWithRetry(IOSupplier<T> task) throws IOException {
-        for (int i = 1; i < 3; i++) {
+        int maxTries = Main.serverConfig != null ? Main.serverConfig.retryMaxTries : 3;
+
+        for (int i = 1; i < maxTries; i++) {
             try {
                 return task.get();
             } catch (IOException | JSONException e) { // GameBanana sometimes sends empty 200 responses
-                logger.warn("I/O exception while doing networking operation (try {}/3).", i, e);
+                if (!isRetryable(e)) {
+                    throw e;
+                }
+
+                logger.warn("I/O exception while doing networking operation (try {}/{}).", i, maxTries, e);
+                IOException ioException = (e instanceof IOException io ? io : new IOException(e));
+                EventListener.handle(listener -> listener.retriedIOException(ioException));
 
                 // wait a bit before retrying
+                long delay = getRetryDelay(e, i);
                 try {
-                    logger.debug("Waiting {} seconds before next try.", i * 5);
-                    Thread.sleep(i * 5000);
+                    logger.debug("Waiting {} ms before next try.", delay);
+                    Thread.sleep(delay);
                 } catch (InterruptedException e2) {
-                    logger.warn("Sleep interrupted", e2);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting before retrying");
                 }
             }
         }
 
-        // 3rd try: this time, if it crashes, let it crash
+        // last try: this time, if it crashes, let it crash
         return task.get();
     }
+
+    private static boolean isRetryable(Exception e) {
+        if (e instanceof CircuitOpenException || e instanceof FileNotFoundException
+                || (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException))) {
+            return false;
+        }
+
+        if (e instanceof HttpStatusException statusException) {
+            int statusCode = statusException.getStatusCode();
+            return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+        }
+
+        return true;
+    }
+
+    private static long getRetryDelay(Exception e, int tryNumber) {
+        long baseDelay = Main.serverConfig != null ? Main.serverConfig.retryBaseDelayMs : 5000;
+        long maxDelay = Main.serverConfig != null ? Main.serverConfig.retryMaxDelayMs : 60000;
+
+        long delay = baseDelay << Math.min(tryNumber - 1, 20);
+
+        if (e instanceof HttpStatusException statusException
+                && (statusException.getStatusCode() == 429 || statusException.getStatusCode() == 503)) {
+
+            // the server told us to slow down: do what it says, or wait longer than usual
+            if (statusException.getRetryAfterMillis() >= 0) {
+                return Math.min(maxDelay, statusException.getRetryAfterMillis());
+            }
+            delay *= 2;
+        }
+
+        // add up to half of the computed delay on top of it, so that threads that failed together don't retry together
+        // (the first retry still waits at least RetryBaseDelayMs)
+        delay = Math.min(maxDelay, delay);
+        return Math.min(maxDelay, delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+    }
 }
@@ -0,0 +1,211 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary copy of the update database (everestupdate.yaml, everestupdateexcluded.yaml and everestupdatenoyaml.yaml),
+ * that is much faster to load and save than the YAML files. The YAML files are still written on each save, since they
+ * are what gets published, but the update checker loads the snapshot instead if they were not touched since it was written.
+ * <p>
+ * The snapshot remembers the size and last modified date of each YAML file it was saved with: if any of them differs
+ * (because someone edited the YAML files by hand for example), the snapshot is ignored and the YAML files are loaded.
+ */
+final class DatabaseSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(DatabaseSnapshot.class);
+
+    private static final int MAGIC = 0x45555344; // "EUSD"
+    private static final int VERSION = 1;
+
+    // limits on lengths read from the file, so that a corrupted file gives an error instead of a huge allocation
+    private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_COUNT = 10_000_000;
+
+    private static final Path SNAPSHOT_FILE = Paths.get("update_checker_database.bin");
+    private static final Path SNAPSHOT_FILE_TEMP = Paths.get("update_checker_database_temp.bin");
+
+    private static final List<Path> YAML_FILES = Arrays.asList(
+            Paths.get("uploads/everestupdate.yaml"),
+            Paths.get("uploads/everestupdateexcluded.yaml"),
+            Paths.get("uploads/everestupdatenoyaml.yaml")
+    );
+
+    final Map<String, Mod> mods;
+    final Map<String, String> excludedFiles;
+    final Set<String> noYamlFiles;
+
+    DatabaseSnapshot(Map<String, Mod> mods, Map<String, String> excludedFiles, Set<String> noYamlFiles) {
+        this.mods = mods;
+        this.excludedFiles = excludedFiles;
+        this.noYamlFiles = noYamlFiles;
+    }
+
+    /**
+     * Loads the snapshot, if it exists and matches the YAML files that are currently on disk.
+     *
+     * @return The snapshot, or null if the YAML files should be loaded instead
+     */
+    static DatabaseSnapshot load() {
+        if (!Files.exists(SNAPSHOT_FILE)) return null;
+
+        try (DataInputStream is = new DataInputStream(new BufferedInputStream(Files.newInputStream(SNAPSHOT_FILE)))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                log.warn("Database snapshot has an unknown format, loading the YAML files instead");
+                return null;
+            }
+
+            // the contents are checksummed, since a corrupted snapshot could give a corrupted database once saved back
+            CRC32 crc = new CRC32();
+            DataInputStream contents = new DataInputStream(new CheckedInputStream(is, crc));
+
+            if (contents.readBoolean() != Main.serverConfig.mainServerIsMirror) {
+                log.info("Mirror setting changed since the database snapshot was saved, loading the YAML files instead");
+                return null;
+            }
+
+            for (Path yamlFile : YAML_FILES) {
+                long size = contents.readLong();
+                long lastModified = contents.readLong();
+                if (!Files.exists(yamlFile) || Files.size(yamlFile) != size || Files.getLastModifiedTime(yamlFile).toMillis() != lastModified) {
+                    log.info("{} changed since the database snapshot was saved, loading the YAML files instead", yamlFile);
+                    return null;
+                }
+            }
+
+            int modCount = readCount(contents);
+            Map<String, Mod> mods = new HashMap<>(modCount * 2);
+            for (int i = 0; i < modCount; i++) {
+                String name = readString(contents);
+                String version = readString(contents);
+                String url = readString(contents);
+                int lastUpdate = contents.readInt();
+
+                int hashCount = readCount(contents);
+                List<String> xxHash = new ArrayList<>(hashCount);
+                for (int j = 0; j < hashCount; j++) {
+                    xxHash.add(readString(contents));
+                }
+
+                String gameBananaType = readString(contents);
+                int gameBananaId = contents.readInt();
+                int size = contents.readInt();
+                mods.put(name, new Mod(name, version, url, lastUpdate, xxHash, gameBananaType, gameBananaId, size));
+            }
+
+            int excludedCount = readCount(contents);
+            Map<String, String> excludedFiles = new HashMap<>(excludedCount * 2);
+            for (int i = 0; i < excludedCount; i++) {
+                excludedFiles.put(readString(contents), readString(contents));
+            }
+
+            int noYamlCount = readCount(contents);
+            Set<String> noYamlFiles = new TreeSet<>();
+            for (int i = 0; i < noYamlCount; i++) {
+                noYamlFiles.add(readString(contents));
+            }
+
+            if ((int) crc.getValue() != is.readInt()) {
+                log.warn("Database snapshot is corrupted, loading the YAML files instead");
+                return null;
+            }
+
+            return new DatabaseSnapshot(mods, excludedFiles, noYamlFiles);
+        } catch (IOException e) {
+            log.warn("Could not read database snapshot, loading the YAML files instead", e);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the snapshot. This should be called right after the YAML files were written, since their current size
+     * and last modified date are saved along with it.
+     */
+    void save() throws IOException {
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(SNAPSHOT_FILE_TEMP)))) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+
+            CRC32 crc = new CRC32();
+            DataOutputStream contents = new DataOutputStream(new CheckedOutputStream(os, crc));
+
+            contents.writeBoolean(Main.serverConfig.mainServerIsMirror);
+
+            for (Path yamlFile : YAML_FILES) {
+                contents.writeLong(Files.size(yamlFile));
+                contents.writeLong(Files.getLastModifiedTime(yamlFile).toMillis());
+            }
+
+            contents.writeInt(mods.size());
+            for (Mod mod : mods.values()) {
+                writeString(contents, mod.getName());
+                writeString(contents, mod.getVersion());
+                writeString(contents, mod.getUrl());
+                contents.writeInt(mod.getLastUpdate());
+
+                contents.writeInt(mod.getXxHash().size());
+                for (String hash : mod.getXxHash()) {
+                    writeString(contents, hash);
+                }
+
+                writeString(contents, mod.getGameBananaType());
+                contents.writeInt(mod.getGameBananaId());
+                contents.writeInt(mod.getSize());
+            }
+
+            contents.writeInt(excludedFiles.size());
+            for (Map.Entry<String, String> entry : excludedFiles.entrySet()) {
+                writeString(contents, entry.getKey());
+                writeString(contents, entry.getValue());
+            }
+
+            contents.writeInt(noYamlFiles.size());
+            for (String file : noYamlFiles) {
+                writeString(contents, file);
+            }
+
+            contents.flush();
+            os.writeInt((int) crc.getValue());
+        }
+
+        Files.move(SNAPSHOT_FILE_TEMP, SNAPSHOT_FILE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // strings are written as their UTF-8 length followed by their bytes (-1 for null), since writeUTF is limited to 64 KB
+    private static void writeString(DataOutputStream os, String string) throws IOException {
+        if (string == null) {
+            os.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        os.writeInt(bytes.length);
+        os.write(bytes);
+    }
+
+    private static int readCount(DataInputStream is) throws IOException {
+        int count = is.readInt();
+        if (count < 0 || count > MAX_COUNT) throw new IOException("Invalid element count: " + count);
+        return count;
+    }
+
+    private static String readString(DataInputStream is) throws IOException {
+        int length = is.readInt();
+        if (length == -1) return null;
+        if (length < 0 || length > MAX_STRING_LENGTH) throw new IOException("Invalid string length: " + length);
+
+        byte[] bytes = new byte[length];
+        is.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
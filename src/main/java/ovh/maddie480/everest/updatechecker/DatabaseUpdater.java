@@ -14,12 +14,11 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DatabaseUpdater {
     private static final Logger log = LoggerFactory.getLogger(DatabaseUpdater.class);
@@ -27,19 +26,24 @@ public class DatabaseUpdater {
     // Model, Sound and Spray also accept files, but they aren't enabled for Celeste
     public static final String[] VALID_CATEGORIES = new String[]{"Mod", "Tool", "Wip"};
 
-    private final Map<String, Mod> database = new HashMap<>();
+    private final IndexedModDatabase database = new IndexedModDatabase();
     private Map<String, String> databaseExcludedFiles = new HashMap<>();
     private Set<String> databaseNoYamlFiles = new HashSet<>();
     private int numberOfModsDownloaded = 0;
 
-    private static final XXHashFactory xxHashFactory = XXHashFactory.fastestInstance();
+    // dependencies of the mods that were saved to the database during this run, handed over to the dependency graph builder
+    private final Map<String, DependencyGraphBuilder.CapturedDependencies> capturedDependencies = new HashMap<>();
 
-    private final Pattern gamebananaLinkRegex = Pattern.compile(".*(https://gamebanana.com/mmdl/[0-9]+).*");
+    static final XXHashFactory xxHashFactory = XXHashFactory.fastestInstance();
 
     private final ModSearchDatabaseBuilder modSearchDatabaseBuilder = new ModSearchDatabaseBuilder();
     private final ModFilesDatabaseBuilder modFilesDatabaseBuilder = new ModFilesDatabaseBuilder();
 
     // saved state (for banana cache dodging and incremental updates)
+    private static final Path LEGACY_STATE_FILE = Paths.get("update_checker_state.ser");
+    private static final int STATE_MOST_RECENT_UPDATED_DATES = 1;
+    private static final int STATE_PAGE_SIZES = 2;
+    private StateFile state = new StateFile();
     private Map<String, Integer> mostRecentUpdatedDates = new HashMap<>();
     private int fullPageSize = 40;
     private int incrementalPageSize = 0;
@@ -50,12 +54,15 @@ public class DatabaseUpdater {
     static void updateDatabaseYaml(boolean full) throws IOException {
         log.info("=== Started searching for updates (full = {})", full);
         EventListener.handle(listener -> listener.startedSearchingForUpdates(full));
-        Path updateCheckerStateFile = Paths.get("update_checker_state.ser");
-        Path updateCheckerStateFileTemp = Paths.get("update_checker_state_temp.ser");
+        Path updateCheckerStateFile = Paths.get("update_checker_state.bin");
+        Path updateCheckerStateFileTemp = Paths.get("update_checker_state_temp.bin");
         long startMillis = System.currentTimeMillis();
 
         boolean somethingChanged;
         int numberOfModsDownloaded;
+        Map<String, List<String>> modFileIds;
+        Map<String, List<String>> richPresenceIcons;
+        Map<String, DependencyGraphBuilder.CapturedDependencies> capturedDependencies;
 
         { // run the updater!
             DatabaseUpdater updater = new DatabaseUpdater();
@@ -64,6 +71,9 @@ public class DatabaseUpdater {
             updater.updateDatabaseYamlInner(full);
             somethingChanged = !updater.database.isEmpty();
             numberOfModsDownloaded = updater.numberOfModsDownloaded;
+            modFileIds = updater.modFilesDatabaseBuilder.getModFileIds();
+            richPresenceIcons = updater.modFilesDatabaseBuilder.getRichPresenceIcons();
+            capturedDependencies = updater.capturedDependencies;
 
             updater.saveState(updateCheckerStateFileTemp);
         }
@@ -71,19 +81,27 @@ public class DatabaseUpdater {
         if (somethingChanged) {
             if (Main.serverConfig.bananaMirrorConfig != null) {
                 // update the file mirror
-                BananaMirror.run();
-                BananaMirrorImages.run();
-                new BananaMirrorRichPresenceIcons().update();
+                try {
+                    BananaMirror.run();
+                    BananaMirrorImages.run();
+                    new BananaMirrorRichPresenceIcons().update(modFileIds, richPresenceIcons);
+                } finally {
+                    SftpConnectionPool.closeAll();
+                }
             }
 
             // update the dependency graph with new entries.
-            DependencyGraphBuilder.updateDependencyGraph();
+            DependencyGraphBuilder.updateDependencyGraph(capturedDependencies);
         }
 
         FileDownloader.cleanup();
+        ZipAnalyzer.clearCache();
 
         log.info("Committing update checker state");
-        Files.move(updateCheckerStateFileTemp, updateCheckerStateFile, StandardCopyOption.REPLACE_EXISTING);
+        StateFile.commit(updateCheckerStateFileTemp, updateCheckerStateFile);
+        Files.deleteIfExists(LEGACY_STATE_FILE);
+
+        RequestGovernor.logStatus();
 
         long time = System.currentTimeMillis() - startMillis;
         log.info("=== Ended searching for updates. Downloaded {} mods while doing so. Total duration = {} ms.", numberOfModsDownloaded, time);
@@ -92,24 +110,62 @@ public class DatabaseUpdater {
 
     private void loadState(Path updateCheckerStateFile) throws IOException {
         log.info("Loading update checker state");
-        if (Files.exists(updateCheckerStateFile)) {
-            try (ObjectInputStream is = new ObjectInputStream(Files.newInputStream(updateCheckerStateFile))) {
-                mostRecentUpdatedDates = (Map<String, Integer>) is.readObject();
-                fullPageSize = is.readInt();
-                incrementalPageSize = is.readInt();
-            } catch (ClassNotFoundException e) {
-                throw new IOException(e);
+        if (!Files.exists(updateCheckerStateFile) && Files.exists(LEGACY_STATE_FILE)) {
+            loadLegacyState();
+            return;
+        }
+
+        state = StateFile.read(updateCheckerStateFile);
+        for (int tag : new int[]{STATE_MOST_RECENT_UPDATED_DATES, STATE_PAGE_SIZES}) {
+            if (state.getSectionVersion(tag) > 1) {
+                throw new IOException("State section " + tag + " was saved by a newer version of the update checker (version " + state.getSectionVersion(tag) + ")");
+            }
+        }
+
+        DataInputStream section = state.getSection(STATE_MOST_RECENT_UPDATED_DATES);
+        if (section != null) {
+            int count = section.readInt();
+            for (int i = 0; i < count; i++) {
+                mostRecentUpdatedDates.put(section.readUTF(), section.readInt());
             }
         }
+
+        section = state.getSection(STATE_PAGE_SIZES);
+        if (section != null) {
+            fullPageSize = section.readInt();
+            incrementalPageSize = section.readInt();
+        }
+    }
+
+    /**
+     * Loads the state from the Java-serialized file that was used by older versions of the update checker.
+     * It will be deleted once the state is saved in the new format.
+     */
+    private void loadLegacyState() throws IOException {
+        log.info("Migrating update checker state from {}", LEGACY_STATE_FILE);
+        try (ObjectInputStream is = new ObjectInputStream(Files.newInputStream(LEGACY_STATE_FILE))) {
+            mostRecentUpdatedDates = (Map<String, Integer>) is.readObject();
+            fullPageSize = is.readInt();
+            incrementalPageSize = is.readInt();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
     }
 
     private void saveState(Path updateCheckerStateFile) throws IOException {
         log.info("Saving update checker state");
-        try (ObjectOutputStream os = new ObjectOutputStream(Files.newOutputStream(updateCheckerStateFile))) {
-            os.writeObject(mostRecentUpdatedDates);
+        state.putSection(STATE_MOST_RECENT_UPDATED_DATES, 1, os -> {
+            os.writeInt(mostRecentUpdatedDates.size());
+            for (Map.Entry<String, Integer> entry : mostRecentUpdatedDates.entrySet()) {
+                os.writeUTF(entry.getKey());
+                os.writeInt(entry.getValue());
+            }
+        });
+        state.putSection(STATE_PAGE_SIZES, 1, os -> {
             os.writeInt(fullPageSize);
             os.writeInt(incrementalPageSize);
-        }
+        });
+        state.write(updateCheckerStateFile);
     }
 
     private void updateDatabaseYamlInner(boolean full) throws IOException {
@@ -142,13 +198,24 @@ public class DatabaseUpdater {
     }
 
     /**
-     * Reads the database from everestupdate.yaml if it exists.
+     * Reads the database from the binary snapshot, or from everestupdate.yaml if the snapshot is missing or outdated.
      *
      * @throws IOException If the read operation fails.
      */
     private void loadDatabaseFromYaml() throws IOException {
         log.debug("Loading databases...");
 
+        DatabaseSnapshot snapshot = DatabaseSnapshot.load();
+        if (snapshot != null) {
+            for (Map.Entry<String, Mod> entry : snapshot.mods.entrySet()) {
+                database.put(entry.getKey(), entry.getValue());
+            }
+            databaseExcludedFiles = snapshot.excludedFiles;
+            databaseNoYamlFiles = snapshot.noYamlFiles;
+            log.debug("Loaded {} mods from the database snapshot.", database.size());
+            return;
+        }
+
         if (new File("uploads/everestupdate.yaml").exists()) {
             try (InputStream is = Files.newInputStream(Paths.get("uploads/everestupdate.yaml"))) {
                 Map<String, Map<String, Object>> imported = YamlUtil.load(is);
@@ -175,20 +242,20 @@ public class DatabaseUpdater {
     }
 
     /**
-     * Writes the database to everestupdate.yaml.
+     * Writes the database to everestupdate.yaml (and its everestupdate.json twin), and to the binary snapshot that will be loaded on the next run.
      *
      * @throws IOException If the write operation fails.
      */
     private void saveDatabaseToYaml() throws IOException {
         log.debug("Saving databases...");
 
-        Map<String, Map<String, Object>> export = new HashMap<>();
-        for (Map.Entry<String, Mod> entry : database.entrySet()) {
-            export.put(entry.getKey(), entry.getValue().toMap());
-        }
+        try (PublishedDatabaseWriter writer = new PublishedDatabaseWriter(Paths.get("uploads/everestupdate.yaml"), Paths.get("uploads/everestupdate.json"))) {
 
-        try (OutputStream os = new FileOutputStream("uploads/everestupdate.yaml")) {
-            YamlUtil.dump(export, os);
+            writer.startMapping();
+            for (Map.Entry<String, Mod> entry : database.entrySet()) {
+                writer.writeEntry(entry.getKey(), entry.getValue().toMap());
+            }
+            writer.commit();
         }
         try (OutputStream os = new FileOutputStream("uploads/everestupdateexcluded.yaml")) {
             YamlUtil.dump(databaseExcludedFiles, os);
@@ -196,6 +263,8 @@ public class DatabaseUpdater {
         try (OutputStream os = new FileOutputStream("uploads/everestupdatenoyaml.yaml")) {
             YamlUtil.dump(new ArrayList<>(databaseNoYamlFiles), os);
         }
+
+        new DatabaseSnapshot(database.asMap(), databaseExcludedFiles, databaseNoYamlFiles).save();
     }
 
     /**
@@ -220,38 +289,99 @@ public class DatabaseUpdater {
         });
         mostRecentUpdatedDates.put(category, lastModifiedDate);
 
-        int page = 1;
-        while (true) {
-            // load a page of mods.
-            final int thisPage = page;
-            JSONArray pageContents = ConnectionUtils.runWithRetry(() -> {
-                log.trace("Loading page {} of category {}", thisPage, category);
+        // files are downloaded and analyzed in parallel by this pool, but the results are merged into the database
+        // on this thread, in the same order as GameBanana gives the mods to us.
+        int concurrency = Main.serverConfig.crawlConcurrency;
+        ExecutorService fileAnalysisPool = Executors.newFixedThreadPool(concurrency);
+        Deque<PendingMod> pendingMods = new ArrayDeque<>();
 
-                try (InputStream is = ConnectionUtils.openStreamWithTimeout("https://gamebanana.com/apiv8/" + category + "/ByGame?_aGameRowIds[]=6460&" +
-                        "_csvProperties=_idRow,_sName,_aFiles,_aSubmitter,_sDescription,_sText,_nLikeCount,_nViewCount,_nDownloadCount,_aCategory," +
-                        "_tsDateAdded,_tsDateModified,_tsDateUpdated,_aPreviewMedia,_sProfileUrl,_bIsNsfw" +
-                        "&_sOrderBy=_idRow,ASC&_nPage=" + thisPage + "&_nPerpage=" + fullPageSize)) {
+        try {
+            int page = 1;
+            while (true) {
+                // load a page of mods.
+                final int thisPage = page;
+                JSONArray pageContents = ConnectionUtils.runWithRetry(() -> {
+                    log.trace("Loading page {} of category {}", thisPage, category);
+
+                    try (InputStream is = ConnectionUtils.openStreamWithTimeout("https://gamebanana.com/apiv8/" + category + "/ByGame?_aGameRowIds[]=6460&" +
+                            "_csvProperties=_idRow,_sName,_aFiles,_aSubmitter,_sDescription,_sText,_nLikeCount,_nViewCount,_nDownloadCount,_aCategory," +
+                            "_tsDateAdded,_tsDateModified,_tsDateUpdated,_aPreviewMedia,_sProfileUrl,_bIsNsfw" +
+                            "&_sOrderBy=_idRow,ASC&_nPage=" + thisPage + "&_nPerpage=" + fullPageSize)) {
+
+                        return new JSONArray(new JSONTokener(is));
+                    } catch (JSONException e) {
+                        // turn JSON parse errors into IOExceptions to trigger a retry.
+                        throw new IOException(e);
+                    }
+                });
 
-                    return new JSONArray(new JSONTokener(is));
-                } catch (JSONException e) {
-                    // turn JSON parse errors into IOExceptions to trigger a retry.
-                    throw new IOException(e);
+                // send its files for analysis, and process the mods that were sent earlier
+                // so that we don't have too many of them in flight.
+                for (Object item : pageContents) {
+                    JSONObject mod = (JSONObject) item;
+                    pendingMods.add(new PendingMod(mod, submitFileAnalyses(mod, fileAnalysisPool)));
+
+                    while (pendingMods.size() > concurrency * 2) {
+                        PendingMod pendingMod = pendingMods.poll();
+                        readModInfo(category, pendingMod.mod(), pendingMod.fileAnalyses());
+                    }
                 }
-            });
 
-            // process it.
-            for (Object item : pageContents) {
-                readModInfo(category, (JSONObject) item);
+                // if we just got an empty page, this means we reached the end of the list!
+                if (pageContents.isEmpty()) {
+                    break;
+                }
+
+                // otherwise, go on.
+                page++;
             }
 
-            // if we just got an empty page, this means we reached the end of the list!
-            if (pageContents.isEmpty()) {
-                break;
+            // process the mods that are still in flight.
+            while (!pendingMods.isEmpty()) {
+                PendingMod pendingMod = pendingMods.poll();
+                readModInfo(category, pendingMod.mod(), pendingMod.fileAnalyses());
             }
+        } finally {
+            fileAnalysisPool.shutdownNow();
+        }
+    }
 
-            // otherwise, go on.
-            page++;
+    /**
+     * A mod that was read from GameBanana, along with the analyses of its files that were started in the background.
+     */
+    private record PendingMod(JSONObject mod, Map<String, Future<ZipAnalysis>> fileAnalyses) {
+    }
+
+    /**
+     * Starts downloading and analyzing all files of the mod that will have to be checked by {@link #updateDatabase}.
+     * This must be called on the same thread as the one updating the database.
+     *
+     * @param mod  The mod, as returned by the GameBanana API
+     * @param pool The thread pool that should run the analyses
+     * @return The file analyses that were started, by file URL
+     */
+    private Map<String, Future<ZipAnalysis>> submitFileAnalyses(JSONObject mod, ExecutorService pool) {
+        Map<String, Future<ZipAnalysis>> fileAnalyses = new HashMap<>();
+        if (mod.isNull("_aFiles")) {
+            return fileAnalyses;
         }
+
+        ModInfoParser parsedModInfo = new ModInfoParser();
+        parsedModInfo.invoke(mod.getJSONArray("_aFiles"), databaseNoYamlFiles);
+
+        for (int i = 0; i < parsedModInfo.allFileUrls.size(); i++) {
+            String fileUrl = parsedModInfo.allFileUrls.get(i);
+            int expectedSize = parsedModInfo.allFileSizes.get(i);
+
+            if (!databaseExcludedFiles.containsKey(fileUrl) && !databaseNoYamlFiles.contains(fileUrl)
+                    && !database.containsUrl(fileUrl)) {
+
+                log.trace("Queueing file {} for analysis", fileUrl);
+                fileAnalyses.put(fileUrl, pool.submit(() -> ZipAnalyzer.analyze(fileUrl, expectedSize)));
+            }
+        }
+
+        return fileAnalyses;
     }
 
     /**
@@ -307,7 +437,7 @@ public class DatabaseUpdater {
                         loadDatabaseFromYaml();
                     }
 
-                    readModInfo(category, modInfo);
+                    readModInfo(category, modInfo, Collections.emptyMap());
                     EventListener.handle(listener -> listener.modUpdatedIncrementally(category, modInfo.getInt("_idRow"), modInfo.getString("_sName")));
                 } else {
                     log.trace("Updated date of mod {} is earlier than last updated date {}, stopping incremental update", mod.getInt("_tsDateModified"), mostRecentUpdatedDates.get(category));
@@ -329,10 +459,12 @@ public class DatabaseUpdater {
     /**
      * Parses a mod, and updates the database as needed.
      *
-     * @param category The category to check
+     * @param category     The category to check
+     * @param mod          The mod, as returned by the GameBanana API
+     * @param fileAnalyses The analyses of the mod's files that were already started, by file URL
      * @throws IOException If a I/O error occurs while communicating with GameBanana
      */
-    private void readModInfo(String category, JSONObject mod) throws IOException {
+    private void readModInfo(String category, JSONObject mod, Map<String, Future<ZipAnalysis>> fileAnalyses) throws IOException {
         log.trace("Processing {} {}", category, mod.getInt("_idRow"));
         String name = mod.getString("_sName");
 
@@ -348,7 +480,7 @@ public class DatabaseUpdater {
             log.trace("{} => URL of most recent file (uploaded at {}) is {}", name, parsedModInfo.mostRecentFileTimestamp, parsedModInfo.mostRecentFileUrl);
             for (int i = 0; i < parsedModInfo.allFileUrls.size(); i++) {
                 updateDatabase(parsedModInfo.allFileTimestamps.get(i), parsedModInfo.allFileUrls.get(i), parsedModInfo.allFileSizes.get(i),
-                        category, mod.getInt("_idRow"));
+                        category, mod.getInt("_idRow"), fileAnalyses.get(parsedModInfo.allFileUrls.get(i)));
             }
         }
 
@@ -397,10 +529,11 @@ public class DatabaseUpdater {
      * @param fileUrl       The file download URL
      * @param gbType        The mod type on GameBanana
      * @param gbId          The mod ID on GameBanana
+     * @param fileAnalysis  The analysis of the file if it was already started, null otherwise
      * @throws IOException In case of connection or IO issues.
      */
-    private void updateDatabase(int fileTimestamp, String fileUrl, int expectedSize, String gbType, int gbId)
-            throws IOException {
+    private void updateDatabase(int fileTimestamp, String fileUrl, int expectedSize, String gbType, int gbId,
+                                Future<ZipAnalysis> fileAnalysis) throws IOException {
 
         log.trace("Checking file {}", fileUrl);
 
@@ -408,55 +541,46 @@ public class DatabaseUpdater {
             log.trace("=> file was skipped because it is in the excluded list.");
         } else if (databaseNoYamlFiles.contains(fileUrl)) {
             log.trace("=> file was skipped because it is in the no yaml file list.");
-        } else if (database.values().stream().anyMatch(mod -> mod.getUrl().equals(fileUrl))) {
+        } else if (database.containsUrl(fileUrl)) {
             log.trace("=> already up to date");
 
             // be sure to sync up GameBanana type and id.
-            database.values().stream()
-                    .filter(mod -> mod.getUrl().equals(fileUrl))
-                    .forEach(mod -> mod.updateGameBananaIds(gbType, gbId, expectedSize));
+            database.updateGameBananaIds(fileUrl, gbType, gbId, expectedSize);
         } else {
-            // download the mod
+            // download and analyze the mod, unless this was already done in the background
             numberOfModsDownloaded++;
-
-            Path file = FileDownloader.downloadFile(fileUrl, expectedSize);
-            String filePath = file.toAbsolutePath().toString();
-
-            // compute its xxHash checksum
-            String xxHash = computeXXHash(filePath);
-
-            try (ZipFile zipFile = ZipFileWithAutoEncoding.open(filePath)) {
-                checkZipSignature(file);
-
-                ZipEntry everestYaml = zipFile.getEntry("everest.yaml");
-                if (everestYaml == null) {
-                    everestYaml = zipFile.getEntry("everest.yml");
-                }
-
-                if (everestYaml == null) {
-                    log.warn("=> {} has no yaml file. Adding to the no yaml files list.", fileUrl);
-                    EventListener.handle(listener -> listener.modHasNoYamlFile(gbType, gbId, fileUrl));
-                    databaseNoYamlFiles.add(fileUrl);
-                } else {
-                    parseEverestYamlFromZipFile(zipFile.getInputStream(everestYaml), xxHash, fileUrl, fileTimestamp, gbType, gbId, expectedSize);
-                }
-            } catch (IOException e) {
-                log.warn("=> could not read zip file from {}. Adding to the excluded files list.", fileUrl, e);
-                EventListener.handle(listener -> listener.zipFileIsUnreadable(gbType, gbId, fileUrl, e));
-                databaseExcludedFiles.put(fileUrl, ExceptionUtils.getStackTrace(e));
+            ZipAnalysis analysis = (fileAnalysis == null ? ZipAnalyzer.analyze(fileUrl, expectedSize) : getZipAnalysis(fileAnalysis));
+
+            IOException zipError = (analysis.zipError != null ? analysis.zipError : analysis.everestYamlReadError);
+
+            if (zipError != null) {
+                log.warn("=> could not read zip file from {}. Adding to the excluded files list.", fileUrl, zipError);
+                EventListener.handle(listener -> listener.zipFileIsUnreadable(gbType, gbId, fileUrl, zipError));
+                databaseExcludedFiles.put(fileUrl, ExceptionUtils.getStackTrace(zipError));
+            } else if (!analysis.hasEverestYaml) {
+                log.warn("=> {} has no yaml file. Adding to the no yaml files list.", fileUrl);
+                EventListener.handle(listener -> listener.modHasNoYamlFile(gbType, gbId, fileUrl));
+                databaseNoYamlFiles.add(fileUrl);
+            } else {
+                parseEverestYamlFromZipFile(analysis, fileUrl, fileTimestamp, gbType, gbId, expectedSize);
             }
         }
     }
 
-    static String computeXXHash(String fileName) throws IOException {
-        try (InputStream is = Files.newInputStream(Paths.get(fileName))) {
-            return computeXXHash(is);
+    private static ZipAnalysis getZipAnalysis(Future<ZipAnalysis> fileAnalysis) throws IOException {
+        try {
+            return fileAnalysis.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) throw ioException;
+            if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+            throw new IOException(e.getCause());
         }
     }
 
     public static String computeXXHash(InputStream is) throws IOException {
-        StringBuilder xxHash;
-
         try (StreamingXXHash64 hash64 = xxHashFactory.newStreamingHash64(0)) {
             byte[] buf = new byte[8192];
             while (true) {
@@ -464,30 +588,39 @@ public class DatabaseUpdater {
                 if (read == -1) break;
                 hash64.update(buf, 0, read);
             }
-            xxHash = new StringBuilder(Long.toHexString(hash64.getValue()));
-
-            // pad it with zeroes
-            while (xxHash.length() < 16) xxHash.insert(0, "0");
+            return formatXXHash(hash64.getValue());
         }
+    }
+
+    /**
+     * Turns an xxHash value into the format used in everestupdate.yaml (16 lowercase hex digits).
+     */
+    static String formatXXHash(long hash) {
+        StringBuilder xxHash = new StringBuilder(Long.toHexString(hash));
+
+        // pad it with zeroes
+        while (xxHash.length() < 16) xxHash.insert(0, "0");
 
         return xxHash.toString();
     }
 
     /**
-     * Parses the everest.yaml from the mod zip, then builds a Mod object from it and adds it to the database.
+     * Goes through the everest.yaml from the mod zip, then builds a Mod object from it and adds it to the database.
      *
-     * @param yamlInputStream The input stream the everest.yaml file can be read from
-     * @param xxHash          The zip's xxHash checksum
-     * @param fileUrl         The file URL on GameBanana
-     * @param fileTimestamp   The timestamp the file was uploaded at on GameBanana
-     * @param gbType          The mod type on GameBanana
-     * @param gbId            The mod ID on GameBanana
-     * @param fileSize        The size of the file
+     * @param analysis      The analysis of the zip, containing its xxHash checksum and its everest.yaml
+     * @param fileUrl       The file URL on GameBanana
+     * @param fileTimestamp The timestamp the file was uploaded at on GameBanana
+     * @param gbType        The mod type on GameBanana
+     * @param gbId          The mod ID on GameBanana
+     * @param fileSize      The size of the file
      */
-    private void parseEverestYamlFromZipFile(InputStream yamlInputStream, String xxHash, String fileUrl, int fileTimestamp,
+    private void parseEverestYamlFromZipFile(ZipAnalysis analysis, String fileUrl, int fileTimestamp,
                                              String gbType, int gbId, int fileSize) {
         try {
-            List<Map<String, Object>> info = YamlUtil.loadNoFloats(yamlInputStream);
+            if (analysis.everestYamlParseError != null) throw analysis.everestYamlParseError;
+
+            String xxHash = analysis.xxHash;
+            List<Map<String, Object>> info = analysis.everestYaml;
 
             for (Map<String, Object> infoMod : info) {
                 String modName = infoMod.get("Name").toString();
@@ -519,6 +652,8 @@ public class DatabaseUpdater {
                     EventListener.handle(listener -> listener.modIsExcludedByName(mod));
                 } else {
                     database.put(modName, mod);
+                    capturedDependencies.put(modName, new DependencyGraphBuilder.CapturedDependencies(
+                            fileUrl, analysis.dependencies, analysis.optionalDependencies, analysis.dependencyError));
                     log.info("=> Saved new information to database: {}", mod);
                     EventListener.handle(listener -> listener.savedNewInformationToDatabase(mod));
                 }
@@ -537,76 +672,29 @@ public class DatabaseUpdater {
     private void checkForModDeletion() {
         log.trace("Checking for mod deletions");
 
-        List<String> existingFiles = modFilesDatabaseBuilder.getFileIds().stream()
-                .map(file -> "https://gamebanana.com/mmdl/" + file)
-                .toList();
+        ModDeletionReconciler.Deletions deletions = ModDeletionReconciler.reconcile(
+                modFilesDatabaseBuilder.getFileIds(), database, databaseExcludedFiles, databaseNoYamlFiles);
 
         // === 1. Mod database
-        Set<String> deletedMods = new HashSet<>();
-
-        for (Map.Entry<String, Mod> databaseEntry : database.entrySet()) {
-            // check if the URL was encountered when checking all GB mods
-            if (!existingFiles.contains(databaseEntry.getValue().getUrl())) {
-                // it was not: save the mod for deletion
-                deletedMods.add(databaseEntry.getKey());
-            }
-        }
-
-        // now, actually delete the mods from the database.
-        // (modifying the map while iterating through it is a bad idea.)
-        for (String deletedMod : deletedMods) {
+        for (String deletedMod : deletions.mods()) {
             Mod mod = database.remove(deletedMod);
             log.warn("Mod {} was deleted from the database", mod.toString());
             EventListener.handle(listener -> listener.modWasDeletedFromDatabase(mod));
         }
 
-
         // === 2. Excluded files list
-        deletedMods.clear();
-
-        for (Map.Entry<String, String> databaseEntry : databaseExcludedFiles.entrySet()) {
-            // if the entry is a URL, check if the file still exists
-            if (databaseEntry.getKey().startsWith("http://") || databaseEntry.getKey().startsWith("https://")) {
-                if (!existingFiles.contains(databaseEntry.getKey())) {
-                    deletedMods.add(databaseEntry.getKey());
-                }
-            }
-
-            // if the description contains a GB URL, check if it still exists
-            Matcher descriptionMatcher = gamebananaLinkRegex.matcher(databaseEntry.getValue());
-            if (descriptionMatcher.matches()) {
-                String gbLink = descriptionMatcher.group(1);
-                if (!existingFiles.contains(gbLink)) {
-                    deletedMods.add(databaseEntry.getKey());
-                }
-            }
-        }
-
-        // now, actually delete the mods from the excluded files list.
-        for (String deletedMod : deletedMods) {
+        for (String deletedMod : deletions.excludedFiles()) {
             databaseExcludedFiles.remove(deletedMod);
             log.warn("File {} was deleted from the excluded files list", deletedMod);
             EventListener.handle(listener -> listener.modWasDeletedFromExcludedFileList(deletedMod));
         }
 
-
         // === 3. No yaml files list
-        deletedMods.clear();
-
-        for (String file : databaseNoYamlFiles) {
-            // check if the URL was encountered when checking all GB mods
-            if (!existingFiles.contains(file)) {
-                // it was not: save the mod for deletion
-                deletedMods.add(file);
-            }
-        }
-
-        // now, actually delete the mods from the no yaml files list.
-        if (!deletedMods.isEmpty()) {
-            databaseNoYamlFiles.removeAll(deletedMods);
-            log.warn("Files {} were deleted from the no yaml files list", deletedMods);
+        if (!deletions.noYamlFiles().isEmpty()) {
+            databaseNoYamlFiles.removeAll(deletions.noYamlFiles());
+            log.warn("Files {} were deleted from the no yaml files list", deletions.noYamlFiles());
 
-            for (String mod : deletedMods) {
+            for (String mod : deletions.noYamlFiles()) {
                 EventListener.handle(listener -> listener.modWasDeletedFromNoYamlFileList(mod));
             }
         }
@@ -3,25 +3,34 @@ package ovh.maddie480.everest.updatechecker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
-import static ovh.maddie480.everest.updatechecker.DatabaseUpdater.checkZipSignature;
 
 public class DependencyGraphBuilder {
     private static final Logger log = LoggerFactory.getLogger(DependencyGraphBuilder.class);
 
-    static void updateDependencyGraph() throws IOException {
+    /**
+     * The dependencies of a mod, as read from its everest.yaml while the update database was being updated.
+     *
+     * @param url   The GameBanana URL of the file the everest.yaml comes from
+     * @param error The error that happened while reading the dependencies, or null if there was none
+     */
+    record CapturedDependencies(String url, Map<String, String> dependencies, Map<String, String> optionalDependencies, Exception error) {
+    }
+
+    /**
+     * Updates the dependency graph with the mods that were added or updated in everest_update.yaml.
+     * Entries are looked up by mod name in the existing graph, and only recomputed if the URL of the mod changed.
+     *
+     * @param capturedDependencies The dependencies that were read during this update, by mod name:
+     *                             mods that are in there don't need to be downloaded again
+     */
+    static void updateDependencyGraph(Map<String, CapturedDependencies> capturedDependencies) throws IOException {
         log.debug("Loading mod databases...");
         Map<String, Map<String, Object>> oldDependencyGraph;
         try (InputStream is = Files.newInputStream(Paths.get("uploads/moddependencygraph.yaml"))) {
@@ -41,53 +50,43 @@ public class DependencyGraphBuilder {
             String url = (String) mod.getValue().get(Main.serverConfig.mainServerIsMirror ? "MirrorURL" : "URL");
 
             // try to find a matching entry (same URL and same name) in the dependency graph we have.
-            Map.Entry<String, Map<String, Object>> existingDependencyGraphEntry = oldDependencyGraph.entrySet()
-                    .stream()
-                    .filter(entry -> entry.getKey().equals(name) && (entry.getValue().get("URL")).equals(url))
-                    .findFirst()
-                    .orElse(null);
+            Map<String, Object> existingDependencyGraphEntry = oldDependencyGraph.get(name);
 
-            if (existingDependencyGraphEntry != null) {
+            if (existingDependencyGraphEntry != null && url.equals(existingDependencyGraphEntry.get("URL"))) {
                 log.trace("Mod {} was already in the dependency graph, copying its data.", name);
-                newDependencyGraph.put(existingDependencyGraphEntry.getKey(), existingDependencyGraphEntry.getValue());
+                newDependencyGraph.put(name, existingDependencyGraphEntry);
             } else {
-                // download file
-                Path file = FileDownloader.downloadFile(url, (int) mod.getValue().get("Size"));
-
-                // read its everest.yaml
                 Map<String, String> dependencies = new HashMap<>();
                 Map<String, String> optionalDependencies = new HashMap<>();
-                try (ZipFile zipFile = ZipFileWithAutoEncoding.open(file.toAbsolutePath().toString())) {
-                    checkZipSignature(file);
-
-                    ZipEntry everestYaml = zipFile.getEntry("everest.yaml");
-                    if (everestYaml == null) {
-                        everestYaml = zipFile.getEntry("everest.yml");
-                    }
-
-                    List<Map<String, Object>> everestYamlContents;
-                    try (InputStream is = zipFile.getInputStream(everestYaml)) {
-                        everestYamlContents = YamlUtil.loadNoFloats(is);
-                    }
-
-                    // merge the Dependencies and OptionalDependencies of all mods defined in the everest.yaml
-                    for (Map<String, Object> yamlEntry : everestYamlContents) {
-                        if (yamlEntry.containsKey("Dependencies")) {
-                            addDependenciesFromList(dependencies, (List<Map<String, Object>>) yamlEntry.get("Dependencies"), everestYamlContents);
-                        }
-                        if (yamlEntry.containsKey("OptionalDependencies")) {
-                            addDependenciesFromList(optionalDependencies, (List<Map<String, Object>>) yamlEntry.get("OptionalDependencies"), everestYamlContents);
-                        }
+                Exception error;
+
+                CapturedDependencies captured = capturedDependencies.get(name);
+                if (captured != null && captured.url().equals(url)) {
+                    // we already read the everest.yaml of this file while updating the database
+                    log.trace("Using dependencies of mod {} that were read during the database update.", name);
+                    dependencies.putAll(captured.dependencies());
+                    optionalDependencies.putAll(captured.optionalDependencies());
+                    error = captured.error();
+                } else {
+                    // download file and get its dependencies
+                    ZipAnalysis analysis = ZipAnalyzer.analyze(url, (int) mod.getValue().get("Size"));
+
+                    if (analysis.zipError == null) {
+                        dependencies.putAll(analysis.dependencies);
+                        optionalDependencies.putAll(analysis.optionalDependencies);
                     }
 
+                    error = (analysis.zipError != null ? analysis.zipError : analysis.dependencyError);
+                }
+                if (error == null) {
                     log.info("Found {} dependencies and {} optional dependencies for for {}.",
                             dependencies.size(), optionalDependencies.size(), mod.getKey());
                     EventListener.handle(listener -> listener.scannedModDependencies(mod.getKey(), dependencies.size(), optionalDependencies.size()));
-                } catch (Exception e) {
+                } else {
                     // if a file cannot be read as a zip, no need to worry about it.
                     // we will just write an empty array.
-                    log.warn("Could not analyze dependency tree from {}", mod.getKey(), e);
-                    EventListener.handle(listener -> listener.dependencyTreeScanException(mod.getKey(), e));
+                    log.warn("Could not analyze dependency tree from {}", mod.getKey(), error);
+                    EventListener.handle(listener -> listener.dependencyTreeScanException(mod.getKey(), error));
                 }
 
                 // save the entry we just got.
@@ -99,14 +98,22 @@ public class DependencyGraphBuilder {
             }
         }
 
+        // the indexes are written first, so that they are never older than the graph
+        DependencyGraphIndexes.update(oldDependencyGraph, newDependencyGraph);
+
         // write it out!
         log.debug("Writing graph...");
-        try (OutputStream os = new FileOutputStream("uploads/moddependencygraph.yaml")) {
-            YamlUtil.dump(newDependencyGraph, os);
+        try (PublishedDatabaseWriter writer = new PublishedDatabaseWriter(Paths.get("uploads/moddependencygraph.yaml"), Paths.get("uploads/moddependencygraph.json"))) {
+
+            writer.startMapping();
+            for (Map.Entry<String, Map<String, Object>> entry : newDependencyGraph.entrySet()) {
+                writer.writeEntry(entry.getKey(), entry.getValue());
+            }
+            writer.commit();
         }
     }
 
-    private static void addDependenciesFromList(Map<String, String> addTo, List<Map<String, Object>> toAdd, List<Map<String, Object>> everestYamlContents) {
+    static void addDependenciesFromList(Map<String, String> addTo, List<Map<String, Object>> toAdd, List<Map<String, Object>> everestYamlContents) {
         for (Map<String, Object> dependencyEntry : toAdd) {
             String name = dependencyEntry.get("Name").toString();
             String version = dependencyEntry.getOrDefault("Version", "NoVersion").toString();
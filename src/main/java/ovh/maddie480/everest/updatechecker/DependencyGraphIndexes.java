@@ -0,0 +1,283 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Derives answers from the dependency graph, so that its users don't have to build the graph themselves:
+ * <ul>
+ *     <li>uploads/modreversedependencies.yaml: for each mod, the mods that depend on it, and how many there are</li>
+ *     <li>uploads/modtransitivedependencies.yaml: for each mod, all the mods that need to be installed for it to work,
+ *     including dependencies of dependencies</li>
+ * </ul>
+ * Both files are updated incrementally: only the mods whose dependencies changed, and the mods that depend on them, are recomputed.
+ * They should be updated before the new dependency graph is written, so that they are never older than the graph they are compared to.
+ */
+final class DependencyGraphIndexes {
+    private static final Logger log = LoggerFactory.getLogger(DependencyGraphIndexes.class);
+
+    private static final Path REVERSE_DEPENDENCIES = Paths.get("uploads/modreversedependencies.yaml");
+    private static final Path TRANSITIVE_DEPENDENCIES = Paths.get("uploads/modtransitivedependencies.yaml");
+    private static final Path DEPENDENCY_GRAPH = Paths.get("uploads/moddependencygraph.yaml");
+
+    private final Map<String, Map<String, Object>> newGraph;
+
+    // mod => mods that depend on it, required and optional
+    private final Map<String, Set<String>> dependents = new TreeMap<>();
+    private final Map<String, Set<String>> optionalDependents = new TreeMap<>();
+
+    // mod => all its required dependencies, direct or not
+    private final Map<String, Set<String>> transitiveDependencies = new TreeMap<>();
+
+    // state for the strongly connected components search (Tarjan's algorithm)
+    private final Set<String> toCompute;
+    private final Map<String, Integer> visitIndex = new HashMap<>();
+    private final Map<String, Integer> lowLink = new HashMap<>();
+    private final Deque<String> stack = new ArrayDeque<>();
+    private final Set<String> onStack = new HashSet<>();
+    private int nextIndex = 0;
+
+    private DependencyGraphIndexes(Map<String, Map<String, Object>> newGraph, Set<String> toCompute) {
+        this.newGraph = newGraph;
+        this.toCompute = toCompute;
+    }
+
+    /**
+     * Updates the reverse dependency and transitive dependency files to match the new dependency graph.
+     *
+     * This should be called before the new dependency graph is written.
+     *
+     * @param oldGraph The dependency graph before the update, that the existing files match
+     * @param newGraph The dependency graph after the update
+     */
+    static void update(Map<String, Map<String, Object>> oldGraph, Map<String, Map<String, Object>> newGraph) throws IOException {
+        boolean incremental = Files.exists(REVERSE_DEPENDENCIES) && Files.exists(TRANSITIVE_DEPENDENCIES) && Files.exists(DEPENDENCY_GRAPH);
+
+        if (incremental && (isNewerThanGraph(REVERSE_DEPENDENCIES) || isNewerThanGraph(TRANSITIVE_DEPENDENCIES))) {
+            // the update checker stopped after writing the files, but before writing the graph they were computed from
+            log.warn("Reverse and transitive dependencies are newer than the dependency graph, recomputing them from scratch");
+            incremental = false;
+        }
+
+        // find the mods that were added, deleted, or had their dependencies change
+        Set<String> changedMods = new HashSet<>();
+        Set<String> allMods = new HashSet<>(oldGraph.keySet());
+        allMods.addAll(newGraph.keySet());
+        for (String mod : allMods) {
+            if (!incremental
+                    || oldGraph.containsKey(mod) != newGraph.containsKey(mod)
+                    || !getDependencies(oldGraph, mod, "Dependencies").equals(getDependencies(newGraph, mod, "Dependencies"))
+                    || !getDependencies(oldGraph, mod, "OptionalDependencies").equals(getDependencies(newGraph, mod, "OptionalDependencies"))) {
+
+                changedMods.add(mod);
+            }
+        }
+
+        if (incremental && changedMods.isEmpty()) {
+            log.debug("No dependency changed, reverse and transitive dependencies are up-to-date.");
+            return;
+        }
+
+        log.debug("Updating reverse and transitive dependencies for {} changed mod(s) (incremental = {})...", changedMods.size(), incremental);
+
+        // === reverse dependencies: move the changed mods from their old dependencies to their new ones
+        Map<String, Set<String>> oldDependents = new HashMap<>();
+        DependencyGraphIndexes indexes;
+        {
+            Map<String, Map<String, Object>> previousReverseDependencies = new HashMap<>();
+            Map<String, List<String>> previousTransitiveDependencies = new HashMap<>();
+            if (incremental) {
+                try (InputStream is = Files.newInputStream(REVERSE_DEPENDENCIES)) {
+                    previousReverseDependencies = YamlUtil.load(is);
+                }
+                try (InputStream is = Files.newInputStream(TRANSITIVE_DEPENDENCIES)) {
+                    previousTransitiveDependencies = YamlUtil.load(is);
+                }
+            }
+
+            // the mods to recompute are the changed ones, and everything that depends on them, before or after the change
+            Set<String> toCompute = new HashSet<>(changedMods);
+            indexes = new DependencyGraphIndexes(newGraph, toCompute);
+
+            for (Map.Entry<String, Map<String, Object>> entry : previousReverseDependencies.entrySet()) {
+                // empty sets are left out, so that mods losing all their dependents get removed from the file
+                Set<String> required = new TreeSet<>((List<String>) entry.getValue().get("Dependents"));
+                Set<String> optional = new TreeSet<>((List<String>) entry.getValue().get("OptionalDependents"));
+                if (!required.isEmpty()) {
+                    indexes.dependents.put(entry.getKey(), required);
+                    oldDependents.put(entry.getKey(), new HashSet<>(required));
+                }
+                if (!optional.isEmpty()) {
+                    indexes.optionalDependents.put(entry.getKey(), optional);
+                }
+            }
+
+            for (String mod : changedMods) {
+                move(indexes.dependents, mod, getDependencies(oldGraph, mod, "Dependencies"), getDependencies(newGraph, mod, "Dependencies"));
+                move(indexes.optionalDependents, mod, getDependencies(oldGraph, mod, "OptionalDependencies"), getDependencies(newGraph, mod, "OptionalDependencies"));
+            }
+
+            addAllDependents(toCompute, changedMods, oldDependents);
+            addAllDependents(toCompute, changedMods, indexes.dependents);
+
+            // === transitive dependencies: carry over the ones that are not affected, and compute the others
+            for (Map.Entry<String, List<String>> entry : previousTransitiveDependencies.entrySet()) {
+                if (newGraph.containsKey(entry.getKey()) && !toCompute.contains(entry.getKey())) {
+                    indexes.transitiveDependencies.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+                }
+            }
+        }
+
+        for (String mod : new TreeSet<>(indexes.toCompute)) {
+            if (newGraph.containsKey(mod) && !indexes.visitIndex.containsKey(mod)) {
+                indexes.computeTransitiveDependencies(mod);
+            }
+        }
+
+        log.debug("Recomputed transitive dependencies of {} mod(s).", indexes.visitIndex.size());
+        indexes.save();
+    }
+
+    /**
+     * Computes the transitive dependencies of a mod, and of all mods it depends on that need to be recomputed.
+     * Mods that depend on each other (directly or not) form a cycle: they all end up with the same dependencies.
+     */
+    private void computeTransitiveDependencies(String mod) {
+        visitIndex.put(mod, nextIndex);
+        lowLink.put(mod, nextIndex);
+        nextIndex++;
+        stack.push(mod);
+        onStack.add(mod);
+
+        for (String dependency : getDependencies(newGraph, mod, "Dependencies")) {
+            if (!newGraph.containsKey(dependency) || !toCompute.contains(dependency)) {
+                // the transitive dependencies of this one are already known (or it isn't a mod from GameBanana, like Everest)
+                continue;
+            }
+
+            if (!visitIndex.containsKey(dependency)) {
+                computeTransitiveDependencies(dependency);
+                lowLink.put(mod, Math.min(lowLink.get(mod), lowLink.get(dependency)));
+            } else if (onStack.contains(dependency)) {
+                lowLink.put(mod, Math.min(lowLink.get(mod), visitIndex.get(dependency)));
+            }
+        }
+
+        if (!lowLink.get(mod).equals(visitIndex.get(mod))) {
+            // this mod is part of a cycle that started earlier, it will be handled when getting back to the start of the cycle
+            return;
+        }
+
+        // pop the mods that are part of the same cycle as this one (often, only this one)
+        List<String> component = new ArrayList<>();
+        String member;
+        do {
+            member = stack.pop();
+            onStack.remove(member);
+            component.add(member);
+        } while (!member.equals(mod));
+
+        if (component.size() > 1 || getDependencies(newGraph, mod, "Dependencies").contains(mod)) {
+            Collections.sort(component);
+            log.warn("Found a dependency cycle between mods: {}", component);
+        }
+
+        // all the mods of a cycle depend on the same things: the dependencies of all members, and their transitive dependencies
+        Set<String> result = new TreeSet<>();
+        for (String componentMember : component) {
+            for (String dependency : getDependencies(newGraph, componentMember, "Dependencies")) {
+                result.add(dependency);
+                Set<String> dependenciesOfDependency = transitiveDependencies.get(dependency);
+                if (dependenciesOfDependency != null) {
+                    result.addAll(dependenciesOfDependency);
+                }
+            }
+        }
+
+        for (String componentMember : component) {
+            Set<String> memberResult = new TreeSet<>(result);
+            memberResult.remove(componentMember);
+            transitiveDependencies.put(componentMember, memberResult);
+        }
+    }
+
+    private void save() throws IOException {
+        Map<String, Map<String, Object>> reverseDependencies = new TreeMap<>();
+        Set<String> modsWithDependents = new TreeSet<>(dependents.keySet());
+        modsWithDependents.addAll(optionalDependents.keySet());
+
+        for (String mod : modsWithDependents) {
+            List<String> required = new ArrayList<>(dependents.getOrDefault(mod, Collections.emptySet()));
+            List<String> optional = new ArrayList<>(optionalDependents.getOrDefault(mod, Collections.emptySet()));
+
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("Count", required.size());
+            entry.put("Dependents", required);
+            entry.put("OptionalCount", optional.size());
+            entry.put("OptionalDependents", optional);
+            reverseDependencies.put(mod, entry);
+        }
+
+        Map<String, List<String>> transitive = new TreeMap<>();
+        for (Map.Entry<String, Set<String>> entry : transitiveDependencies.entrySet()) {
+            transitive.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+
+        log.debug("Writing reverse and transitive dependencies...");
+        try (OutputStream os = new FileOutputStream(REVERSE_DEPENDENCIES.toFile())) {
+            YamlUtil.dump(reverseDependencies, os);
+        }
+        try (OutputStream os = new FileOutputStream(TRANSITIVE_DEPENDENCIES.toFile())) {
+            YamlUtil.dump(transitive, os);
+        }
+    }
+
+    private static boolean isNewerThanGraph(Path file) throws IOException {
+        return Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(DEPENDENCY_GRAPH)) > 0;
+    }
+
+    private static void move(Map<String, Set<String>> dependents, String mod, Set<String> oldDependencies, Set<String> newDependencies) {
+        for (String dependency : oldDependencies) {
+            Set<String> set = dependents.get(dependency);
+            if (set != null) {
+                set.remove(mod);
+                if (set.isEmpty()) dependents.remove(dependency);
+            }
+        }
+        for (String dependency : newDependencies) {
+            dependents.computeIfAbsent(dependency, k -> new TreeSet<>()).add(mod);
+        }
+    }
+
+    /**
+     * Adds all the mods that depend on the given ones, directly or not, to the given set.
+     */
+    private static void addAllDependents(Set<String> addTo, Set<String> mods, Map<String, Set<String>> dependents) {
+        Deque<String> toVisit = new ArrayDeque<>(mods);
+        Set<String> visited = new HashSet<>(mods);
+
+        while (!toVisit.isEmpty()) {
+            for (String dependent : dependents.getOrDefault(toVisit.poll(), Collections.emptySet())) {
+                if (visited.add(dependent)) {
+                    addTo.add(dependent);
+                    toVisit.add(dependent);
+                }
+            }
+        }
+    }
+
+    private static Set<String> getDependencies(Map<String, Map<String, Object>> graph, String mod, String key) {
+        Map<String, Object> entry = graph.get(mod);
+        if (entry == null || entry.get(key) == null) return Collections.emptySet();
+        return ((Map<String, String>) entry.get(key)).keySet();
+    }
+}
@@ -1,104 +1,340 @@
 package ovh.maddie480.everest.updatechecker;
 
-import org.apache.commons.io.IOUtils;
+import net.jpountz.xxhash.StreamingXXHash64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.net.http.HttpResponse;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Provides a way to download files in different modules without redownloading them multiple times.
+ * This can be called from multiple threads at once.
+ * <p>
+ * GameBanana files can also be kept in a persistent cache on disk (download_cache/[fileId]_[xxHash]) from one run to the next,
+ * if DownloadCacheSizeMB is set in the config. The least recently used files are evicted when the cache gets over that size,
+ * files that were used during the current run being kept until {@link #cleanup()} is called.
  */
 public class FileDownloader {
     private static final Logger log = LoggerFactory.getLogger(FileDownloader.class);
 
-    private static final Map<String, Path> alreadyDownloadedFiles = new HashMap<>();
+    /**
+     * A file that was downloaded, along with its xxHash and size, that were computed while downloading it.
+     */
+    public record DownloadResult(Path path, String xxHash, long size) {
+    }
+
+    private static final Map<String, DownloadResult> alreadyDownloadedFiles = new ConcurrentHashMap<>();
+
+    // used to avoid downloading the same file twice if 2 threads ask for it at the same time
+    private static final Map<String, Object> downloadLocks = new ConcurrentHashMap<>();
+
+    private static final Path cacheDirectory = Paths.get("download_cache");
+    private static final Pattern cachedFileName = Pattern.compile("([0-9]+)_([0-9a-f]{16})");
+
+    // GameBanana file ID => file in the persistent cache, loaded from the cache directory on first use
+    private static Map<String, DownloadResult> persistentCache = null;
 
-    public static Path downloadFile(String url) throws IOException {
+    // files from the persistent cache that were used during this run, and that should not be evicted before cleanup() is called.
+    // files are added here as soon as they are in the cache, under the same lock as eviction, so that no thread can lose its file.
+    private static final Set<Path> pinnedCacheFiles = new HashSet<>();
+
+    // guards persistentCache and pinnedCacheFiles, and everything that adds or deletes files in the cache directory
+    private static final Object cacheLock = new Object();
+
+    public static DownloadResult downloadFile(String url) throws IOException {
         return downloadFile(url, null, null);
     }
 
-    public static Path downloadFile(String url, int expectedSize) throws IOException {
+    public static DownloadResult downloadFile(String url, int expectedSize) throws IOException {
         return downloadFile(url, expectedSize, null);
     }
 
-    public static Path downloadFile(String url, Collection<String> expectedHashes) throws IOException {
+    public static DownloadResult downloadFile(String url, Collection<String> expectedHashes) throws IOException {
         return downloadFile(url, null, expectedHashes);
     }
 
     public static void cleanup() throws IOException {
-        for (Path path : alreadyDownloadedFiles.values()) {
-            log.debug("Cleaning up downloaded file {}", path);
-            Files.delete(path);
+        for (DownloadResult result : alreadyDownloadedFiles.values()) {
+            if (!result.path().startsWith(cacheDirectory)) {
+                log.debug("Cleaning up downloaded file {}", result.path());
+                Files.delete(result.path());
+            }
         }
         alreadyDownloadedFiles.clear();
+        downloadLocks.clear();
+
+        // files used during this run can now be evicted from the persistent cache.
+        if (isPersistentCacheEnabled()) {
+            synchronized (cacheLock) {
+                pinnedCacheFiles.clear();
+                evictFromPersistentCache();
+            }
+        }
     }
 
-    private static Path downloadFile(String url, Integer providedSize, Collection<String> expectedHashes) throws IOException {
+    private static DownloadResult downloadFile(String url, Integer providedSize, Collection<String> expectedHashes) throws IOException {
+        synchronized (downloadLocks.computeIfAbsent(url, k -> new Object())) {
+            return downloadFileLocked(url, providedSize, expectedHashes);
+        }
+    }
+
+    private static DownloadResult downloadFileLocked(String url, Integer providedSize, Collection<String> expectedHashes) throws IOException {
         if (alreadyDownloadedFiles.containsKey(url)) {
-            Path path = alreadyDownloadedFiles.get(url);
-            log.debug("File {} found in cache: {}", url, path.toAbsolutePath());
-            return path;
+            DownloadResult result = alreadyDownloadedFiles.get(url);
+            log.debug("File {} found in cache: {}", url, result.path().toAbsolutePath());
+
+            if (expectedHashes != null && !expectedHashes.contains(result.xxHash())) {
+                throw new IOException("xxHash checksum failure on file " + url + "!");
+            }
+            return result;
         }
 
-        final Path target = Paths.get("/tmp").resolve("updater_downloaded_file_" + System.currentTimeMillis());
+        // only GameBanana files go to the persistent cache, since we can identify them with their file ID.
+        String fileId = null;
+        if (isPersistentCacheEnabled() && url.matches("https://gamebanana.com/mmdl/[0-9]+")) {
+            fileId = url.substring("https://gamebanana.com/mmdl/".length());
+
+            DownloadResult cached = getFromPersistentCache(url, fileId, providedSize, expectedHashes);
+            if (cached != null) {
+                log.debug("File {} found in persistent cache: {}", url, cached.path().toAbsolutePath());
+                alreadyDownloadedFiles.put(url, cached);
+                return cached;
+            }
+        }
+
+        // the name needs to be unique, since other threads might be downloading files at the same time
+        final Path target = (fileId == null ?
+                Files.createTempFile(Paths.get("/tmp"), "updater_downloaded_file_", "") :
+                Files.createTempFile(cacheDirectory, fileId + "_", ".part"));
 
         try {
-            Integer expectedSize = getContentLength(url).orElse(providedSize);
+            // sending a HEAD request first is an extra round trip per file, so the size is taken from the GET response by default
+            Integer headSize = (Main.serverConfig != null && Main.serverConfig.useHeadRequestForFileSize ?
+                    getContentLengthWithHeadRequest(url).orElse(null) : null);
 
-            return ConnectionUtils.runWithRetry(() -> {
+            DownloadResult result = ConnectionUtils.runWithRetry(() -> {
                 log.debug("Starting download of {} to {}", url, target.toAbsolutePath());
 
-                try (InputStream is = new BufferedInputStream(ConnectionUtils.openStreamWithTimeout(url));
-                     OutputStream os = new BufferedOutputStream(Files.newOutputStream(target))) {
+                HttpResponse<InputStream> con = ConnectionUtils.openConnectionWithTimeout(url);
 
-                    IOUtils.copy(is, os);
-                }
+                Integer expectedSize = getExpectedSize(url, headSize != null ? headSize : getContentLength(con), providedSize);
 
-                if (expectedSize != null) {
-                    long actualSize = Files.size(target);
-                    if (expectedSize != actualSize) {
-                        throw new IOException("The announced file size (" + expectedSize + ") does not match what we got (" + actualSize + ")" +
-                            " for file " + url);
+                // compute the size and hash of the file while it is being downloaded, so that we don't need to read it again
+                long actualSize = 0;
+                String xxHash;
+
+                try (InputStream is = new BufferedInputStream(ConnectionUtils.connectionToInputStream(con));
+                     OutputStream os = new BufferedOutputStream(Files.newOutputStream(target));
+                     StreamingXXHash64 hash64 = DatabaseUpdater.xxHashFactory.newStreamingHash64(0)) {
+
+                    byte[] buf = new byte[8192];
+                    int read;
+                    while ((read = is.read(buf)) != -1) {
+                        hash64.update(buf, 0, read);
+                        os.write(buf, 0, read);
+                        actualSize += read;
                     }
+
+                    xxHash = DatabaseUpdater.formatXXHash(hash64.getValue());
                 }
 
-                if (expectedHashes != null) {
-                    String xxHash = DatabaseUpdater.computeXXHash(target.toAbsolutePath().toString());
-                    if (!expectedHashes.contains(xxHash)) {
-                        throw new IOException("xxHash checksum failure on file " + url + "!");
-                    }
+                if (expectedSize != null && expectedSize != actualSize) {
+                    throw new IOException("The announced file size (" + expectedSize + ") does not match what we got (" + actualSize + ")" +
+                        " for file " + url);
                 }
 
-                log.debug("Download of {} to {} finished!", url, target.toAbsolutePath());
-                alreadyDownloadedFiles.put(url, target);
-                return target;
+                if (expectedHashes != null && !expectedHashes.contains(xxHash)) {
+                    throw new IOException("xxHash checksum failure on file " + url + "!");
+                }
+
+                log.debug("Download of {} to {} finished! Size = {}, xxHash = {}", url, target.toAbsolutePath(), actualSize, xxHash);
+                return new DownloadResult(target, xxHash, actualSize);
             });
+
+            if (fileId != null) {
+                result = addToPersistentCache(fileId, result);
+            }
+
+            alreadyDownloadedFiles.put(url, result);
+            return result;
         } catch (IOException e) {
             if (Files.exists(target)) Files.delete(target);
             throw e;
         }
     }
 
-    private static Optional<Integer> getContentLength(String url) {
+    private static boolean isPersistentCacheEnabled() {
+        return Main.serverConfig != null && Main.serverConfig.downloadCacheSizeMB > 0;
+    }
+
+    /**
+     * Looks for a file in the persistent cache, and checks that it matches what we expect.
+     * The size given by the caller is only checked the same way it is when downloading: a mismatch is logged, but the file
+     * is trusted anyway, since its size and xxHash were checked against what the server sent when it was downloaded.
+     *
+     * @return The cached file, or null if it isn't in the cache or doesn't match
+     */
+    private static DownloadResult getFromPersistentCache(String url, String fileId, Integer providedSize, Collection<String> expectedHashes) throws IOException {
+        synchronized (cacheLock) {
+            DownloadResult cached = getPersistentCache().get(fileId);
+            if (cached == null) return null;
+
+            if (Files.exists(cached.path()) && Files.size(cached.path()) == cached.size()
+                    && (expectedHashes == null || expectedHashes.contains(cached.xxHash()))) {
+
+                if (providedSize != null && providedSize != cached.size()) {
+                    log.warn("The size given for file {} ({}) does not match its cached size ({})", url, providedSize, cached.size());
+                }
+
+                // mark the file as recently used
+                Files.setLastModifiedTime(cached.path(), FileTime.fromMillis(System.currentTimeMillis()));
+                pinnedCacheFiles.add(cached.path());
+                return cached;
+            }
+
+            log.warn("Cached file {} does not match the expected size or hash, evicting it", cached.path());
+            Files.deleteIfExists(cached.path());
+            getPersistentCache().remove(fileId);
+            return null;
+        }
+    }
+
+    /**
+     * Moves a freshly downloaded file to its final place in the persistent cache, then evicts files if the cache got too big.
+     */
+    private static DownloadResult addToPersistentCache(String fileId, DownloadResult download) throws IOException {
+        synchronized (cacheLock) {
+            Path finalPath = cacheDirectory.resolve(fileId + "_" + download.xxHash());
+            Files.move(download.path(), finalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            DownloadResult cached = new DownloadResult(finalPath, download.xxHash(), download.size());
+            pinnedCacheFiles.add(finalPath);
+            DownloadResult previous = getPersistentCache().put(fileId, cached);
+            if (previous != null && !previous.path().equals(finalPath)) {
+                Files.deleteIfExists(previous.path());
+            }
+
+            evictFromPersistentCache();
+            return cached;
+        }
+    }
+
+    /**
+     * Deletes the least recently used files from the persistent cache until it fits in its size budget again.
+     * Files that were used during the current run are kept.
+     */
+    private static void evictFromPersistentCache() throws IOException {
+        synchronized (cacheLock) {
+            long budget = Main.serverConfig.downloadCacheSizeMB * 1024L * 1024L;
+            long totalSize = getPersistentCache().values().stream().mapToLong(DownloadResult::size).sum();
+            if (totalSize <= budget) return;
+
+            List<Map.Entry<String, DownloadResult>> candidates = new ArrayList<>();
+            Map<Path, FileTime> lastAccessTimes = new HashMap<>();
+            Iterator<Map.Entry<String, DownloadResult>> iterator = getPersistentCache().entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, DownloadResult> entry = iterator.next();
+                if (pinnedCacheFiles.contains(entry.getValue().path())) continue;
+
+                try {
+                    lastAccessTimes.put(entry.getValue().path(), Files.getLastModifiedTime(entry.getValue().path()));
+                    candidates.add(entry);
+                } catch (NoSuchFileException e) {
+                    // the file was deleted by someone else, there is nothing to evict
+                    log.debug("Cached file {} does not exist anymore, forgetting it", entry.getValue().path());
+                    iterator.remove();
+                    totalSize -= entry.getValue().size();
+                }
+            }
+            candidates.sort(Comparator.comparing(entry -> lastAccessTimes.get(entry.getValue().path())));
+
+            for (Map.Entry<String, DownloadResult> entry : candidates) {
+                if (totalSize <= budget) break;
+
+                log.debug("Evicting {} from the persistent download cache", entry.getValue().path());
+                Files.deleteIfExists(entry.getValue().path());
+                getPersistentCache().remove(entry.getKey());
+                totalSize -= entry.getValue().size();
+            }
+        }
+    }
+
+    private static Map<String, DownloadResult> getPersistentCache() throws IOException {
+        if (persistentCache != null) return persistentCache;
+
+        log.debug("Loading persistent download cache...");
+        persistentCache = new HashMap<>();
+        Files.createDirectories(cacheDirectory);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDirectory)) {
+            for (Path file : files) {
+                Matcher matcher = cachedFileName.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    persistentCache.put(matcher.group(1), new DownloadResult(file, matcher.group(2), Files.size(file)));
+                } else {
+                    // leftover from a download that was interrupted
+                    log.debug("Deleting unexpected file {} from the persistent download cache", file);
+                    Files.delete(file);
+                }
+            }
+        }
+
+        log.debug("Found {} files in the persistent download cache", persistentCache.size());
+        return persistentCache;
+    }
+
+    /**
+     * Reads the size of the file from the Content-Length header of a response.
+     * If the response is compressed, the header gives the compressed size, so it cannot be used.
+     *
+     * @return The size, or null if the header is missing or unusable
+     */
+    private static Integer getContentLength(HttpResponse<InputStream> con) {
+        String contentEncoding = con.headers().firstValue("Content-Encoding").orElse(null);
+        if (contentEncoding != null && !"identity".equals(contentEncoding)) return null;
+
+        String contentLength = con.headers().firstValue("Content-Length").orElse(null);
+        if (contentLength == null) return null;
+
+        try {
+            return Integer.parseInt(contentLength);
+        } catch (NumberFormatException e) {
+            log.debug("Could not parse Content-Length header \"{}\" as number", contentLength);
+            return null;
+        }
+    }
+
+    /**
+     * Picks the size we should expect for the file, between the one the server announced and the one the caller gave.
+     * The announced size wins if both are present, since it reflects what will actually be sent.
+     */
+    private static Integer getExpectedSize(String url, Integer announcedSize, Integer providedSize) {
+        if (announcedSize == null) return providedSize;
+
+        log.debug("Content-Length of {} is {}", url, announcedSize);
+        if (providedSize != null && !providedSize.equals(announcedSize)) {
+            log.warn("The size given for file {} ({}) does not match its Content-Length ({})", url, providedSize, announcedSize);
+        }
+        return announcedSize;
+    }
+
+    private static Optional<Integer> getContentLengthWithHeadRequest(String url) {
         try {
             return Optional.of(ConnectionUtils.runWithRetry(() -> {
-                HttpURLConnection con = ConnectionUtils.openConnectionWithTimeout(url);
-                con.setRequestMethod("HEAD");
-                con.setInstanceFollowRedirects(true);
+                HttpResponse<InputStream> con = ConnectionUtils.openConnectionWithTimeout(url, "HEAD");
+                con.body().close();
 
-                int responseCode = con.getResponseCode();
+                int responseCode = con.statusCode();
                 if (responseCode != 200) throw new IOException("Request failed with code " + responseCode);
 
-                String contentLength = con.getHeaderField("Content-Length");
+                String contentLength = con.headers().firstValue("Content-Length").orElse(null);
                 if (contentLength == null) throw new IOException("No Content-Length header");
                 log.debug("Content-Length of {} is {}", url, contentLength);
 
@@ -113,4 +349,4 @@ public class FileDownloader {
             return Optional.empty();
         }
     }
-}
\ No newline at end of file
+}
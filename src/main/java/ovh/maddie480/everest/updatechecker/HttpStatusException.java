@@ -0,0 +1,28 @@
+package ovh.maddie480.everest.updatechecker;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a server responds with an error status code, so that callers can tell errors apart.
+ */
+public class HttpStatusException extends IOException {
+    private final int statusCode;
+    private final long retryAfterMillis;
+
+    public HttpStatusException(String url, int statusCode, long retryAfterMillis) {
+        super("Server returned HTTP response code: " + statusCode + " for URL: " + url);
+        this.statusCode = statusCode;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return The delay the server asked us to wait for before retrying (Retry-After header), or -1 if it did not say
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
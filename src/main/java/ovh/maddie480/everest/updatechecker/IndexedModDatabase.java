@@ -0,0 +1,120 @@
+package ovh.maddie480.everest.updatechecker;
+
+import java.util.*;
+
+/**
+ * The mod update database (mod name => mod), along with an index that allows finding mods by URL
+ * without going through the whole database. The index is kept up-to-date as mods are added to and removed from the database.
+ */
+public class IndexedModDatabase {
+    private final Map<String, Mod> modsByName = new HashMap<>();
+
+    private final Map<String, Set<String>> modNamesByUrl = new HashMap<>();
+
+    public Mod get(String modName) {
+        return modsByName.get(modName);
+    }
+
+    public boolean containsKey(String modName) {
+        return modsByName.containsKey(modName);
+    }
+
+    public boolean isEmpty() {
+        return modsByName.isEmpty();
+    }
+
+    public int size() {
+        return modsByName.size();
+    }
+
+    public Set<Map.Entry<String, Mod>> entrySet() {
+        return Collections.unmodifiableMap(modsByName).entrySet();
+    }
+
+    public Collection<Mod> values() {
+        return Collections.unmodifiableCollection(modsByName.values());
+    }
+
+    /**
+     * Gives a read-only view of the database (mod name => mod), that follows later changes to it.
+     */
+    public Map<String, Mod> asMap() {
+        return Collections.unmodifiableMap(modsByName);
+    }
+
+    /**
+     * Adds a mod to the database, replacing any mod that had the same name.
+     *
+     * @return The mod that was replaced, or null if there was none
+     */
+    public Mod put(String modName, Mod mod) {
+        Mod previous = modsByName.put(modName, mod);
+        if (previous != null) {
+            unindex(modName, previous);
+        }
+        index(modName, mod);
+        return previous;
+    }
+
+    /**
+     * Removes a mod from the database.
+     *
+     * @return The mod that was removed, or null if there was none
+     */
+    public Mod remove(String modName) {
+        Mod previous = modsByName.remove(modName);
+        if (previous != null) {
+            unindex(modName, previous);
+        }
+        return previous;
+    }
+
+    /**
+     * Checks if any mod in the database has the given download URL.
+     */
+    public boolean containsUrl(String url) {
+        return modNamesByUrl.containsKey(url);
+    }
+
+    /**
+     * Gives all the URLs that are referenced by the database.
+     */
+    public Set<String> getUrls() {
+        return Collections.unmodifiableSet(modNamesByUrl.keySet());
+    }
+
+    /**
+     * Gives all mods that have the given download URL (there can be multiple if a zip has multiple entries in its everest.yaml).
+     */
+    public List<Mod> getByUrl(String url) {
+        return resolve(modNamesByUrl.get(url));
+    }
+
+    /**
+     * Updates the GameBanana type, ID and file size of all mods that have the given URL.
+     */
+    public void updateGameBananaIds(String url, String gameBananaType, int gameBananaId, int size) {
+        for (Mod mod : getByUrl(url)) {
+            mod.updateGameBananaIds(gameBananaType, gameBananaId, size);
+        }
+    }
+
+    private void index(String modName, Mod mod) {
+        modNamesByUrl.computeIfAbsent(mod.getUrl(), k -> new HashSet<>()).add(modName);
+    }
+
+    private void unindex(String modName, Mod mod) {
+        Set<String> modNames = modNamesByUrl.get(mod.getUrl());
+        if (modNames != null) {
+            modNames.remove(modName);
+            if (modNames.isEmpty()) {
+                modNamesByUrl.remove(mod.getUrl());
+            }
+        }
+    }
+
+    private List<Mod> resolve(Set<String> modNames) {
+        if (modNames == null) return Collections.emptyList();
+        return modNames.stream().map(modsByName::get).toList();
+    }
+}
@@ -0,0 +1,71 @@
+package ovh.maddie480.everest.updatechecker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map of strings saved to a YAML file, with changes saved to a {@link StateJournal} (+key[tab]value / -key records)
+ * instead of rewriting the whole file each time. Keys should not contain tabs. If the file does not exist, the map starts empty.
+ * This is not thread-safe.
+ */
+final class JournaledMap implements Closeable {
+    private final Map<String, String> entries = new LinkedHashMap<>();
+    private final StateJournal journal;
+
+    /**
+     * Loads the map from a YAML file, and replays the changes that were saved to the journal since the last time the file was written.
+     */
+    JournaledMap(Path file) throws IOException {
+        if (Files.exists(file)) {
+            try (InputStream is = Files.newInputStream(file)) {
+                entries.putAll(YamlUtil.<Map<String, String>>load(is));
+            }
+        }
+
+        journal = StateJournal.open(file, os -> YamlUtil.dump(new LinkedHashMap<>(entries), os));
+        for (String record : journal.getRecordsToReplay()) {
+            if (record.startsWith("+") && record.contains("\t")) {
+                entries.put(record.substring(1, record.indexOf('\t')), record.substring(record.indexOf('\t') + 1));
+            } else if (record.startsWith("-")) {
+                entries.remove(record.substring(1));
+            }
+        }
+    }
+
+    String get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @return A read-only view of the map
+     */
+    Map<String, String> asMap() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    void put(String key, String value) throws IOException {
+        if (!value.equals(entries.put(key, value))) {
+            journal.append("+" + key + "\t" + value);
+        }
+    }
+
+    void remove(String key) throws IOException {
+        if (entries.remove(key) != null) {
+            journal.append("-" + key);
+        }
+    }
+
+    /**
+     * Writes the whole map back to the YAML file.
+     */
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
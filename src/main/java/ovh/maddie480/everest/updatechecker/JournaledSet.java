@@ -0,0 +1,70 @@
+package ovh.maddie480.everest.updatechecker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of strings saved to a YAML list, with changes saved to a {@link StateJournal} (+element / -element records)
+ * instead of rewriting the whole file each time. Elements keep the order they were added in.
+ * This is not thread-safe.
+ */
+final class JournaledSet implements Closeable {
+    private final Set<String> elements = new LinkedHashSet<>();
+    private final StateJournal journal;
+
+    /**
+     * Loads the set from a YAML list, and replays the changes that were saved to the journal since the last time the file was written.
+     */
+    JournaledSet(Path file) throws IOException {
+        try (InputStream is = Files.newInputStream(file)) {
+            elements.addAll(YamlUtil.<List<String>>load(is));
+        }
+
+        journal = StateJournal.open(file, os -> YamlUtil.dump(new ArrayList<>(elements), os));
+        for (String record : journal.getRecordsToReplay()) {
+            if (record.startsWith("+")) {
+                elements.add(record.substring(1));
+            } else if (record.startsWith("-")) {
+                elements.remove(record.substring(1));
+            }
+        }
+    }
+
+    boolean contains(String element) {
+        return elements.contains(element);
+    }
+
+    /**
+     * @return A copy of the elements of the set
+     */
+    Set<String> toSet() {
+        return new LinkedHashSet<>(elements);
+    }
+
+    void add(String element) throws IOException {
+        if (elements.add(element)) {
+            journal.append("+" + element);
+        }
+    }
+
+    void remove(String element) throws IOException {
+        if (elements.remove(element)) {
+            journal.append("-" + element);
+        }
+    }
+
+    /**
+     * Writes the whole set back to the YAML file.
+     */
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -0,0 +1,121 @@
+package ovh.maddie480.everest.updatechecker;
+
+import java.util.*;
+
+/**
+ * Figures out which entries of the update database, excluded files list and no yaml files list
+ * refer to files that do not exist on GameBanana anymore.
+ */
+final class ModDeletionReconciler {
+    private static final String GAMEBANANA_LINK_PREFIX = "https://gamebanana.com/mmdl/";
+
+    /**
+     * The entries that should be deleted from each list.
+     */
+    record Deletions(Set<String> mods, Set<String> excludedFiles, Set<String> noYamlFiles) {
+    }
+
+    // exclusion reason => GameBanana link referenced in it, kept from one run to the next since those reasons rarely change
+    private static Map<String, Optional<String>> referencedFileCache = new HashMap<>();
+
+    private ModDeletionReconciler() {
+    }
+
+    /**
+     * Compares the databases with the files that were found on GameBanana.
+     *
+     * @param existingFileIds The IDs of all files that currently exist on GameBanana
+     * @param database        The update database
+     * @param excludedFiles   The excluded files list (file URL or mod name => reason)
+     * @param noYamlFiles     The no yaml files list
+     * @return The names of the mods, and the keys of the excluded and no yaml files, that should be deleted
+     */
+    static Deletions reconcile(Collection<String> existingFileIds, IndexedModDatabase database,
+                               Map<String, String> excludedFiles, Set<String> noYamlFiles) {
+
+        Set<String> existingFiles = new HashSet<>();
+        for (String fileId : existingFileIds) {
+            existingFiles.add(GAMEBANANA_LINK_PREFIX + fileId);
+        }
+
+        // === 1. Mod database: mods whose URL was not encountered when checking all GB mods
+        Set<String> deletedMods = new HashSet<>();
+        for (String url : database.getUrls()) {
+            if (!existingFiles.contains(url)) {
+                for (Mod mod : database.getByUrl(url)) {
+                    deletedMods.add(mod.getName());
+                }
+            }
+        }
+
+        // === 2. Excluded files list: entries that are URLs of deleted files, or that refer to a deleted file in their description
+        Set<String> deletedExcludedFiles = new HashSet<>();
+        Map<String, Optional<String>> newReferencedFileCache = new HashMap<>();
+
+        for (Map.Entry<String, String> entry : excludedFiles.entrySet()) {
+            if ((entry.getKey().startsWith("http://") || entry.getKey().startsWith("https://"))
+                    && !existingFiles.contains(entry.getKey())) {
+
+                deletedExcludedFiles.add(entry.getKey());
+            }
+
+            Optional<String> referencedFile = referencedFileCache.get(entry.getValue());
+            if (referencedFile == null) {
+                referencedFile = Optional.ofNullable(findReferencedFile(entry.getValue()));
+            }
+            newReferencedFileCache.put(entry.getValue(), referencedFile);
+
+            if (referencedFile.isPresent() && !existingFiles.contains(referencedFile.get())) {
+                deletedExcludedFiles.add(entry.getKey());
+            }
+        }
+
+        // only keep the reasons that are still in use, so that the cache doesn't grow forever
+        referencedFileCache = newReferencedFileCache;
+
+        // === 3. No yaml files list: files that were not encountered when checking all GB mods
+        Set<String> deletedNoYamlFiles = new HashSet<>();
+        for (String file : noYamlFiles) {
+            if (!existingFiles.contains(file)) {
+                deletedNoYamlFiles.add(file);
+            }
+        }
+
+        return new Deletions(deletedMods, deletedExcludedFiles, deletedNoYamlFiles);
+    }
+
+    /**
+     * Finds the GameBanana link mentioned in an exclusion reason, like "File https://gamebanana.com/mmdl/123456 has same mod ID and is more recent".
+     * This behaves like matching the reason against <code>.*(https://gamebanana.com/mmdl/[0-9]+).*</code> used to:
+     * reasons that span multiple lines (stack traces) do not count, and if there are several links, the last one wins.
+     *
+     * @param reason The exclusion reason
+     * @return The GameBanana link, or null if there is none
+     */
+    static String findReferencedFile(String reason) {
+        if (reason == null) return null;
+
+        for (int i = 0; i < reason.length(); i++) {
+            char c = reason.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return null;
+            }
+        }
+
+        int index = reason.lastIndexOf(GAMEBANANA_LINK_PREFIX);
+        while (index != -1) {
+            int end = index + GAMEBANANA_LINK_PREFIX.length();
+            while (end < reason.length() && reason.charAt(end) >= '0' && reason.charAt(end) <= '9') {
+                end++;
+            }
+
+            if (end > index + GAMEBANANA_LINK_PREFIX.length()) {
+                return reason.substring(index, end);
+            }
+
+            index = reason.lastIndexOf(GAMEBANANA_LINK_PREFIX, index - 1);
+        }
+
+        return null;
+    }
+}
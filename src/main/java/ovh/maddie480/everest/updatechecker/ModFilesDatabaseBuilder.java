@@ -13,17 +13,17 @@ import java.nio.file.Paths;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
-import static ovh.maddie480.everest.updatechecker.DatabaseUpdater.checkZipSignature;
 
 public class ModFilesDatabaseBuilder {
     private static final Logger log = LoggerFactory.getLogger(ModFilesDatabaseBuilder.class);
 
-    private final List<String> fullList = new LinkedList<>();
+    // mod (itemtype/itemid) => GameBanana file IDs, in the order mods were added
+    private final Map<String, List<String>> modFileIds = new LinkedHashMap<>();
     private final List<String> fullFileIdList = new LinkedList<>();
 
+    // file ID => Rich Presence icons, for files that were downloaded and analyzed during this update
+    private final Map<String, List<String>> richPresenceIcons = new HashMap<>();
+
     ModFilesDatabaseBuilder() throws IOException {
         Path modFilesDatabaseDir = Paths.get("modfilesdatabase_temp");
         if (Files.isDirectory(modFilesDatabaseDir)) {
@@ -42,9 +42,8 @@ public class ModFilesDatabaseBuilder {
         if (!Files.isDirectory(modFilesDatabaseDir)) {
             Files.createDirectories(modFilesDatabaseDir);
         }
-        fullList.add(itemtype + "/" + itemid);
-
         List<String> createdYamls = new LinkedList<>();
+        modFileIds.put(itemtype + "/" + itemid, createdYamls);
 
         int index = 0;
         for (String fileUrl : urls) {
@@ -71,34 +70,25 @@ public class ModFilesDatabaseBuilder {
             } else {
                 log.debug("Downloading {} to get its file listing...", fileUrl);
 
-                // download file
-                Path file = FileDownloader.downloadFile(fileUrl, expectedSize);
+                // download and analyze file
+                ZipAnalysis analysis = ZipAnalyzer.analyze(fileUrl, expectedSize);
 
-                // go through it!
-                List<String> filePaths = new LinkedList<>();
-                try (ZipFile zipFile = ZipFileWithAutoEncoding.open(file.toAbsolutePath().toString(), fileUrl)) {
-                    checkZipSignature(file);
-
-                    final Enumeration<? extends ZipEntry> entriesEnum = zipFile.entries();
-                    while (entriesEnum.hasMoreElements()) {
-                        try {
-                            ZipEntry entry = entriesEnum.nextElement();
-                            if (!entry.isDirectory()) {
-                                filePaths.add(entry.getName());
-                            }
-                        } catch (IllegalArgumentException e) {
-                            log.warn("Encountered error while going through zip file", e);
-                            EventListener.handle(listener -> listener.zipFileWalkthroughError(itemtype, itemid, fileUrl, e));
-                        }
-                    }
+                for (IllegalArgumentException e : analysis.walkthroughErrors) {
+                    EventListener.handle(listener -> listener.zipFileWalkthroughError(itemtype, itemid, fileUrl, e));
+                }
 
+                List<String> filePaths = new LinkedList<>();
+                if (analysis.zipError == null) {
+                    filePaths.addAll(analysis.fileList);
+                    richPresenceIcons.put(fileid, BananaMirrorRichPresenceIcons.findRichPresenceIcons(analysis.fileList));
                     log.info("Found {} file(s) in {}.", filePaths.size(), fileUrl);
                     EventListener.handle(listener -> listener.scannedZipContents(fileUrl, filePaths.size()));
-                } catch (IOException | IllegalArgumentException e) {
+                } else {
                     // if a file cannot be read as a zip, no need to worry about it.
                     // we will just write an empty array.
-                    log.warn("Could not analyze zip from {}", fileUrl, e);
-                    EventListener.handle(listener -> listener.zipFileIsUnreadableForFileListing(itemtype, itemid, fileUrl, e));
+                    log.warn("Could not analyze zip from {}", fileUrl, analysis.zipError);
+                    EventListener.handle(listener -> listener.zipFileIsUnreadableForFileListing(itemtype, itemid, fileUrl, analysis.zipError));
+                    richPresenceIcons.put(fileid, Collections.emptyList());
                 }
 
                 // write the result.
@@ -121,6 +111,22 @@ public class ModFilesDatabaseBuilder {
         return fullFileIdList;
     }
 
+    /**
+     * Gives the IDs of the files of each mod (itemtype/itemid), as saved in the mod files database.
+     * This is only complete after {@link #saveToDisk(boolean)} was called.
+     */
+    Map<String, List<String>> getModFileIds() {
+        return Collections.unmodifiableMap(modFileIds);
+    }
+
+    /**
+     * Gives the Rich Presence icons that were found in each file that was downloaded and analyzed during this update,
+     * by file ID. Files that were copied over from the previous mod files database are not in there.
+     */
+    Map<String, List<String>> getRichPresenceIcons() {
+        return Collections.unmodifiableMap(richPresenceIcons);
+    }
+
     void saveToDisk(boolean full) throws IOException {
         if (!full) {
             fillInGapsForIncrementalUpdate();
@@ -133,7 +139,7 @@ public class ModFilesDatabaseBuilder {
         }
 
         try (OutputStream os = new FileOutputStream("modfilesdatabase_temp/list.yaml")) {
-            YamlUtil.dump(fullList, os);
+            YamlUtil.dump(new ArrayList<>(modFileIds.keySet()), os);
         }
 
         checkForAhornPlugins();
@@ -149,9 +155,6 @@ public class ModFilesDatabaseBuilder {
         if (Files.isDirectory(databasePathTemp)) {
             Files.move(databasePathTemp, databasePath);
         }
-
-        // we don't need this list anymore, free up its memory.
-        fullList.clear();
     }
 
     private void fillInGapsForIncrementalUpdate() throws IOException {
@@ -162,7 +165,7 @@ public class ModFilesDatabaseBuilder {
         }
 
         for (String mod : mods) {
-            if (fullList.contains(mod)) {
+            if (modFileIds.containsKey(mod)) {
                 log.trace("File {} was updated incrementally already, skipping.", mod);
                 continue;
             }
@@ -177,8 +180,9 @@ public class ModFilesDatabaseBuilder {
             log.trace("Copying all info for mod {}...", mod);
             Files.createDirectories(Paths.get("modfilesdatabase_temp/" + mod).getParent());
             FileUtils.copyDirectory(new File("modfilesdatabase/" + mod), new File("modfilesdatabase_temp/" + mod));
-            fullFileIdList.addAll((List<String>) fileInfo.get("Files"));
-            fullList.add(mod);
+            List<String> files = (List<String>) fileInfo.get("Files");
+            fullFileIdList.addAll(files);
+            modFileIds.put(mod, files);
         }
     }
 
@@ -234,17 +238,12 @@ public class ModFilesDatabaseBuilder {
             });
         }
 
-        for (String mod : fullList) {
-            // get the versions list
-            Path modFolder = Paths.get("modfilesdatabase_temp/" + mod);
-            Map<String, Object> versions;
-            try (InputStream is = Files.newInputStream(modFolder.resolve("info.yaml"))) {
-                versions = YamlUtil.load(is);
-            }
+        for (Map.Entry<String, List<String>> mod : modFileIds.entrySet()) {
+            Path modFolder = Paths.get("modfilesdatabase_temp/" + mod.getKey());
 
-            for (String version : (List<String>) versions.get("Files")) {
-                checkAhornFilesDatabase(mod, modFolder, version);
-                checkLoennFilesDatabase(mod, modFolder, version);
+            for (String version : mod.getValue()) {
+                checkAhornFilesDatabase(mod.getKey(), modFolder, version);
+                checkLoennFilesDatabase(mod.getKey(), modFolder, version);
             }
         }
     }
@@ -270,30 +269,26 @@ public class ModFilesDatabaseBuilder {
                 List<String> ahornTriggers = new LinkedList<>();
                 List<String> ahornEffects = new LinkedList<>();
 
-                // download file
-                Path zipFilePath = FileDownloader.downloadFile("https://gamebanana.com/mmdl/" + version);
+                // download file and get the Ahorn plugin contents
+                ZipAnalysis analysis = ZipAnalyzer.analyze("https://gamebanana.com/mmdl/" + version);
 
-                // scan its contents, opening Ahorn plugin files
-                try (ZipFile zipFile = ZipFileWithAutoEncoding.open(zipFilePath.toAbsolutePath().toString())) {
-                    checkZipSignature(zipFilePath);
-
-                    for (String file : fileList) {
-                        if (file.startsWith("Ahorn/") && file.endsWith(".jl")) {
-                            log.debug("Analyzing file {}", file);
-                            InputStream inputStream = zipFile.getInputStream(zipFile.getEntry(file));
-                            extractAhornEntities(ahornEntities, ahornTriggers, ahornEffects, file, inputStream);
-                        }
-                    }
+                if (analysis.zipError == null) {
+                    ahornEntities.addAll(analysis.ahornEntities);
+                    ahornTriggers.addAll(analysis.ahornTriggers);
+                    ahornEffects.addAll(analysis.ahornEffects);
+                }
 
+                Exception error = (analysis.zipError != null ? analysis.zipError : analysis.ahornError);
+                if (error == null) {
                     log.info("Found {} Ahorn entities, {} triggers, {} effects in https://gamebanana.com/mmdl/{}.",
                             ahornEntities.size(), ahornTriggers.size(), ahornEffects.size(), version);
                     EventListener.handle(listener -> listener.scannedAhornEntities("https://gamebanana.com/mmdl/" + version,
                             ahornEntities.size(), ahornTriggers.size(), ahornEffects.size()));
-                } catch (IOException | IllegalArgumentException e) {
+                } else {
                     // if a file cannot be read as a zip, no need to worry about it.
                     // we will just write an empty array.
-                    log.warn("Could not analyze Ahorn plugins from https://gamebanana.com/mmdl/{}", version, e);
-                    EventListener.handle(listener -> listener.ahornPluginScanError("https://gamebanana.com/mmdl/" + version, e));
+                    log.warn("Could not analyze Ahorn plugins from https://gamebanana.com/mmdl/{}", version, error);
+                    EventListener.handle(listener -> listener.ahornPluginScanError("https://gamebanana.com/mmdl/" + version, error));
                 }
 
                 // write the result.
@@ -310,8 +305,8 @@ public class ModFilesDatabaseBuilder {
         }
     }
 
-    private void extractAhornEntities(List<String> ahornEntities, List<String> ahornTriggers, List<String> ahornEffects,
-                                     String file, InputStream inputStream) throws IOException {
+    static void extractAhornEntities(List<String> ahornEntities, List<String> ahornTriggers, List<String> ahornEffects,
+                                    String file, InputStream inputStream) throws IOException {
 
         Pattern mapdefMatcher = Pattern.compile(".*@mapdef(?:data)? [A-Za-z]+ \"([^\"]+)\".*");
         Pattern pardefMatcher = Pattern.compile(".*Entity\\(\"([^\"]+)\".*");
@@ -364,41 +359,26 @@ public class ModFilesDatabaseBuilder {
                 Set<String> loennTriggers = new HashSet<>();
                 Set<String> loennEffects = new HashSet<>();
 
-                // download file
-                Path zipFilePath = FileDownloader.downloadFile("https://gamebanana.com/mmdl/" + version);
-
-                // extract the en_gb.lang file
-                try (ZipFile zipFile = ZipFileWithAutoEncoding.open(zipFilePath.toAbsolutePath().toString())) {
-                    checkZipSignature(zipFilePath);
-
-                    for (String file : fileList) {
-                        if (file.startsWith("Loenn/") && file.endsWith(".lua")) {
-                            log.debug("Analyzing file {}", file);
-                            InputStream inputStream = zipFile.getInputStream(zipFile.getEntry(file));
-                            extractLoennEntitiesFromPlugin(loennEntities, loennTriggers, loennEffects, file, inputStream);
-                        }
-
-                        if (file.equals("Loenn/lang/en_gb.lang")) {
-                            try (InputStream inputStream = zipFile.getInputStream(zipFile.getEntry("Loenn/lang/en_gb.lang"));
-                                BufferedReader br = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
-
-                                Triple<Set<String>, Set<String>, Set<String>> extractedLoennEntities = extractLoennEntitiesFromLangFile(br);
-                                loennEntities.addAll(extractedLoennEntities.getLeft());
-                                loennTriggers.addAll(extractedLoennEntities.getMiddle());
-                                loennEffects.addAll(extractedLoennEntities.getRight());
-                            }
-                        }
-                    }
+                // download file and get the Lönn plugin contents
+                ZipAnalysis analysis = ZipAnalyzer.analyze("https://gamebanana.com/mmdl/" + version);
+
+                if (analysis.zipError == null) {
+                    loennEntities.addAll(analysis.loennEntities);
+                    loennTriggers.addAll(analysis.loennTriggers);
+                    loennEffects.addAll(analysis.loennEffects);
+                }
 
+                Exception error = (analysis.zipError != null ? analysis.zipError : analysis.loennError);
+                if (error == null) {
                     log.info("Found {} Lönn entities, {} triggers, {} effects in https://gamebanana.com/mmdl/{}.",
                             loennEntities.size(), loennTriggers.size(), loennEffects.size(), version);
                     EventListener.handle(listener -> listener.scannedLoennEntities("https://gamebanana.com/mmdl/" + version,
                             loennEntities.size(), loennTriggers.size(), loennEffects.size()));
-                } catch (IOException | IllegalArgumentException e) {
+                } else {
                     // if a file cannot be read as a zip, no need to worry about it.
                     // we will just write an empty array.
-                    log.warn("Could not analyze Lönn plugins from https://gamebanana.com/mmdl/{}", version, e);
-                    EventListener.handle(listener -> listener.loennPluginScanError("https://gamebanana.com/mmdl/" + version, e));
+                    log.warn("Could not analyze Lönn plugins from https://gamebanana.com/mmdl/{}", version, error);
+                    EventListener.handle(listener -> listener.loennPluginScanError("https://gamebanana.com/mmdl/" + version, error));
                 }
 
                 // write the result.
@@ -439,8 +419,8 @@ public class ModFilesDatabaseBuilder {
         return Triple.of(loennEntities, loennTriggers, loennEffects);
     }
 
-    private void extractLoennEntitiesFromPlugin(Set<String> loennEntities, Set<String> loennTriggers, Set<String> loennEffects,
-                                               String file, InputStream inputStream) throws IOException {
+    static void extractLoennEntitiesFromPlugin(Set<String> loennEntities, Set<String> loennTriggers, Set<String> loennEffects,
+                                              String file, InputStream inputStream) throws IOException {
 
         // match on: name = "[something]/[something]" :david_goodenough:
         Pattern nameMatcher = Pattern.compile(".*name = [^\"]*\"([^/\" ]+/[^\" ]+)\".*");
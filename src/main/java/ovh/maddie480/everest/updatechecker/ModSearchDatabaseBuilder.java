@@ -10,6 +10,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -271,17 +272,25 @@ public class ModSearchDatabaseBuilder {
             position++;
         }
 
-        List<Map<String, Object>> modSearchDatabase = modSearchInfo.stream().map(ModSearchInfo::toMap).collect(Collectors.toList());
+        log.debug("Saving mod search database");
 
-        if (!full) {
-            fillInGapsForIncrementalUpdate(modSearchDatabase);
-        }
+        // the previous database is read while writing the new one on incremental updates:
+        // this works because the writer only replaces it once it is done.
+        Path databaseFile = Paths.get("uploads/modsearchdatabase.yaml");
 
-        log.debug("Saving mod search database");
+        // map ModSearchInfo's to Maps and save them one by one.
+        try (PublishedDatabaseWriter writer = new PublishedDatabaseWriter(databaseFile, Paths.get("uploads/modsearchdatabase.json"))) {
+
+            writer.startSequence();
+            for (ModSearchInfo mod : modSearchInfo) {
+                writer.writeValue(mod.toMap());
+            }
+
+            if (!full) {
+                fillInGapsForIncrementalUpdate(databaseFile, writer);
+            }
 
-        // map ModSearchInfo's to Maps and save them.
-        try (OutputStream os = new FileOutputStream("uploads/modsearchdatabase.yaml")) {
-            YamlUtil.dump(modSearchDatabase, os);
+            writer.commit();
         }
 
         // save the NSFW mod list, because we will need it for incremental updates
@@ -349,22 +358,24 @@ public class ModSearchDatabaseBuilder {
         }
     }
 
-    private void fillInGapsForIncrementalUpdate(List<Map<String, Object>> database) throws IOException {
-        log.debug("Loading old mod search database...");
-        List<Map<String, Object>> previousModInfo;
-        try (InputStream is = Files.newInputStream(Paths.get("uploads/modsearchdatabase.yaml"))) {
-            previousModInfo = YamlUtil.load(is);
-        }
-
-        for (Map<String, Object> oldMod : previousModInfo) {
-            if (database.stream().noneMatch(newMod ->
-                    newMod.get("GameBananaType").equals(oldMod.get("GameBananaType"))
-                            && newMod.get("GameBananaId").equals(oldMod.get("GameBananaId")))) {
-
-                // mod is not in new database => carry it over from old database
-                log.trace("Carrying over {} {} from old database", oldMod.get("GameBananaType"), oldMod.get("GameBananaId"));
-                database.add(oldMod);
-            }
+    /**
+     * Copies the mods that were not updated this time from the previous mod search database, one by one,
+     * and loads the list of mods that were previously tagged as NSFW.
+     */
+    private void fillInGapsForIncrementalUpdate(Path previousDatabase, PublishedDatabaseWriter writer) throws IOException {
+        Set<String> updatedMods = modSearchInfo.stream()
+                .map(mod -> mod.gameBananaType + "/" + mod.gameBananaId)
+                .collect(Collectors.toSet());
+
+        log.debug("Reading old mod search database...");
+        try (InputStream is = Files.newInputStream(previousDatabase)) {
+            YamlStreamReader.forEachRecord(is, null, oldMod -> {
+                if (!updatedMods.contains(oldMod.get("GameBananaType") + "/" + oldMod.get("GameBananaId"))) {
+                    // mod is not in new database => carry it over from old database
+                    log.trace("Carrying over {} {} from old database", oldMod.get("GameBananaType"), oldMod.get("GameBananaId"));
+                    writer.writeValue(oldMod);
+                }
+            });
         }
 
         // retrieve the list of mods that were previously tagged as NSFW (which we might not have retrieved this time)
@@ -0,0 +1,148 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.json.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Writes a published database to a YAML file and to a JSON file with the same contents at the same time,
+ * one element at a time. The JSON file is there for consumers that would rather not parse YAML:
+ * both files have the same structure, keys and values.
+ * <p>
+ * Both files are written to temporary files next to the published ones first, and only replace them
+ * when {@link #commit()} is called. If the writer is closed without being committed (because something failed
+ * while writing, for example), the temporary files are deleted and the published files are left untouched.
+ * This also means the previous version of the files can be read while writing the new one.
+ * This is not thread-safe.
+ */
+final class PublishedDatabaseWriter implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PublishedDatabaseWriter.class);
+
+    private final Path yamlFile;
+    private final Path yamlFileTemp;
+    private final Path jsonFile;
+    private final Path jsonFileTemp;
+
+    private final YamlStreamWriter yamlWriter;
+    private final Writer jsonStream;
+    private final JSONWriter jsonWriter;
+
+    // true for mappings, false for sequences
+    private final Deque<Boolean> openCollections = new ArrayDeque<>();
+    private boolean committed = false;
+
+    PublishedDatabaseWriter(Path yamlFile, Path jsonFile) throws IOException {
+        this.yamlFile = yamlFile;
+        this.yamlFileTemp = getTempFile(yamlFile);
+        this.jsonFile = jsonFile;
+        this.jsonFileTemp = getTempFile(jsonFile);
+
+        OutputStream yamlStream = Files.newOutputStream(yamlFileTemp);
+        try {
+            yamlWriter = new YamlStreamWriter(yamlStream);
+            jsonStream = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(jsonFileTemp), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            yamlStream.close();
+            Files.deleteIfExists(yamlFileTemp);
+            throw e;
+        }
+        jsonWriter = new JSONWriter(jsonStream);
+    }
+
+    void startSequence() throws IOException {
+        yamlWriter.startSequence();
+        jsonWriter.array();
+        openCollections.push(false);
+    }
+
+    void startMapping() throws IOException {
+        yamlWriter.startMapping();
+        jsonWriter.object();
+        openCollections.push(true);
+    }
+
+    /**
+     * Ends the list or map that was started last.
+     */
+    void end() throws IOException {
+        yamlWriter.end();
+        if (openCollections.pop()) {
+            jsonWriter.endObject();
+        } else {
+            jsonWriter.endArray();
+        }
+    }
+
+    /**
+     * Writes an entry of the current map.
+     */
+    void writeEntry(String key, Object value) throws IOException {
+        yamlWriter.writeEntry(key, value);
+        jsonWriter.key(key).value(value);
+    }
+
+    /**
+     * Writes an element of the current list.
+     */
+    void writeValue(Object value) throws IOException {
+        yamlWriter.writeValue(value);
+        jsonWriter.value(value);
+    }
+
+    /**
+     * Ends all lists and maps that are still open, and replaces the published files with the ones that were just written.
+     * Each file is replaced atomically, but the two files are not replaced together: the JSON file is moved first,
+     * so if moving the YAML file fails, the JSON file is newer than the YAML file until the next successful commit.
+     * The YAML file is the one the update checker reads back, so it never sees a half-committed state as current.
+     */
+    void commit() throws IOException {
+        while (!openCollections.isEmpty()) {
+            end();
+        }
+        yamlWriter.finish();
+        closeStreams();
+
+        Files.move(jsonFileTemp, jsonFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(yamlFileTemp, yamlFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    /**
+     * Closes both files. If {@link #commit()} was not called, the files that were being written are thrown away.
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) return;
+
+        log.warn("Writing {} did not complete, keeping the previous version", yamlFile);
+        try {
+            closeStreams();
+        } finally {
+            Files.deleteIfExists(yamlFileTemp);
+            Files.deleteIfExists(jsonFileTemp);
+        }
+    }
+
+    private void closeStreams() throws IOException {
+        try {
+            yamlWriter.close();
+        } finally {
+            jsonStream.close();
+        }
+    }
+
+    // uploads/everestupdate.yaml => uploads/everestupdate_temp.yaml, in the same directory so that it can be moved atomically
+    private static Path getTempFile(Path file) {
+        String name = file.getFileName().toString();
+        int extension = name.lastIndexOf('.');
+        return file.resolveSibling(name.substring(0, extension) + "_temp" + name.substring(extension));
+    }
+}
@@ -0,0 +1,155 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the requests sent to GameBanana, and slows callers down if they get close to the rate limits.
+ * The API (gamebanana.com/apiv*) and the files (gamebanana.com/mmdl, files.gamebanana.com) have separate budgets,
+ * that refill continuously over an hour (token bucket). Requests to other hosts are not limited.
+ * All requests going through {@link ConnectionUtils} are accounted for here. This can be called from multiple threads at once.
+ */
+final class RequestGovernor {
+    private static final Logger log = LoggerFactory.getLogger(RequestGovernor.class);
+
+    private static final long ONE_HOUR_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    /**
+     * A budget of requests per hour. Tokens can go negative, in which case callers are told to wait until they are paid back:
+     * this way, callers get served in the order they asked, and waiting does not require holding the lock.
+     */
+    private static class Budget {
+        private final String name;
+        private final int requestsPerHour;
+
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private long requestCount = 0;
+
+        private Budget(String name, int requestsPerHour) {
+            this.name = name;
+            this.requestsPerHour = requestsPerHour;
+            this.tokens = requestsPerHour;
+        }
+
+        /**
+         * Takes a token from the budget.
+         *
+         * @return The amount of nanoseconds the caller should wait before sending its request
+         */
+        private synchronized long reserve() {
+            requestCount++;
+            if (requestsPerHour <= 0) return 0;
+
+            refill();
+            tokens--;
+            if (tokens >= 0) return 0;
+
+            return (long) (-tokens * ONE_HOUR_NANOS / requestsPerHour);
+        }
+
+        private synchronized int getRemaining() {
+            if (requestsPerHour <= 0) return Integer.MAX_VALUE;
+
+            refill();
+            return (int) Math.floor(Math.max(0, tokens));
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(requestsPerHour, tokens + (double) (now - lastRefill) * requestsPerHour / ONE_HOUR_NANOS);
+            lastRefill = now;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (requestsPerHour <= 0) return name + ": " + requestCount + " requests, unlimited";
+            return name + ": " + requestCount + " requests, " + getRemaining() + "/" + requestsPerHour + " remaining";
+        }
+    }
+
+    private static Budget apiBudget;
+    private static Budget filesBudget;
+
+    private RequestGovernor() {
+    }
+
+    /**
+     * Takes a token from the budget the URL belongs to, and waits if the budget is exhausted.
+     *
+     * @param url The URL that is about to be requested
+     * @throws IOException If the thread was interrupted while waiting
+     */
+    static void acquire(String url) throws IOException {
+        long waitNanos = reserve(url);
+        if (waitNanos <= 0) return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for request budget");
+        }
+    }
+
+    /**
+     * Takes a token from the budget the URL belongs to, without waiting. This is what {@link #acquire(String)} uses,
+     * and what asynchronous requests use to know how long they should be delayed.
+     *
+     * @param url The URL that is about to be requested
+     * @return The amount of nanoseconds the caller should wait before sending its request
+     */
+    static long reserve(String url) {
+        Budget budget = getBudget(url);
+        long waitNanos = budget == null ? 0 : budget.reserve();
+
+        if (waitNanos > 0) {
+            log.warn("GameBanana request budget exhausted, waiting {} ms before requesting {}", TimeUnit.NANOSECONDS.toMillis(waitNanos), url);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Logs how many requests were sent so far, and how much of the budget remains.
+     */
+    static void logStatus() {
+        initialize();
+        log.info("GameBanana request budget: {}; {}", apiBudget, filesBudget);
+    }
+
+    private static synchronized void initialize() {
+        if (apiBudget != null) return;
+
+        if (Main.serverConfig != null) {
+            apiBudget = new Budget("API", Main.serverConfig.gameBananaApiRequestsPerHour);
+            filesBudget = new Budget("files", Main.serverConfig.gameBananaFileRequestsPerHour);
+        } else {
+            apiBudget = new Budget("API", 250);
+            filesBudget = new Budget("files", 0);
+        }
+    }
+
+    private static Budget getBudget(String url) {
+        initialize();
+
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (Exception e) {
+            return null;
+        }
+
+        String host = uri.getHost();
+        String path = uri.getPath() == null ? "" : uri.getPath();
+
+        if ("gamebanana.com".equals(host) && path.startsWith("/apiv")) return apiBudget;
+        if ("gamebanana.com".equals(host) && path.startsWith("/mmdl")) return filesBudget;
+        if ("files.gamebanana.com".equals(host)) return filesBudget;
+        return null;
+    }
+}
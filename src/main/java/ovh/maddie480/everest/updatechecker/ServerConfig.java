@@ -11,6 +11,7 @@ public class ServerConfig {
         public final String directory;
         public final String imagesDirectory;
         public final String richPresenceIconsDirectory;
+        public final int parallelTransfers;
 
         public BananaMirrorConfig(Map<String, Object> config) {
             knownHosts = config.get("KnownHosts").toString();
@@ -20,14 +21,35 @@ public class ServerConfig {
             directory = config.get("Directory").toString();
             imagesDirectory = config.get("ImagesDirectory").toString();
             richPresenceIconsDirectory = config.get("RichPresenceIconsDirectory").toString();
+            parallelTransfers = Math.max(1, (int) config.getOrDefault("ParallelTransfers", 4));
         }
     }
 
     public final boolean mainServerIsMirror;
+    public final int crawlConcurrency;
+    public final int downloadCacheSizeMB;
+    public final boolean useHeadRequestForFileSize;
+    public final int gameBananaApiRequestsPerHour;
+    public final int gameBananaFileRequestsPerHour;
+    public final int retryMaxTries;
+    public final int retryBaseDelayMs;
+    public final int retryMaxDelayMs;
+    public final int circuitBreakerThreshold;
+    public final int circuitBreakerCooldownSeconds;
     public final BananaMirrorConfig bananaMirrorConfig;
 
     public ServerConfig(Map<String, Object> config) {
         mainServerIsMirror = (boolean) config.getOrDefault("MainServerIsMirror", false);
+        crawlConcurrency = Math.max(1, (int) config.getOrDefault("CrawlConcurrency", 4));
+        downloadCacheSizeMB = (int) config.getOrDefault("DownloadCacheSizeMB", 0);
+        useHeadRequestForFileSize = (boolean) config.getOrDefault("UseHeadRequestForFileSize", false);
+        gameBananaApiRequestsPerHour = (int) config.getOrDefault("GameBananaApiRequestsPerHour", 250);
+        gameBananaFileRequestsPerHour = (int) config.getOrDefault("GameBananaFileRequestsPerHour", 0);
+        retryMaxTries = Math.max(1, (int) config.getOrDefault("RetryMaxTries", 3));
+        retryBaseDelayMs = (int) config.getOrDefault("RetryBaseDelayMs", 5000);
+        retryMaxDelayMs = (int) config.getOrDefault("RetryMaxDelayMs", 60000);
+        circuitBreakerThreshold = Math.max(1, (int) config.getOrDefault("CircuitBreakerThreshold", 5));
+        circuitBreakerCooldownSeconds = (int) config.getOrDefault("CircuitBreakerCooldownSeconds", 60);
         bananaMirrorConfig = config.containsKey("BananaMirrorConfig") ?
                 new BananaMirrorConfig((Map<String, Object>) config.get("BananaMirrorConfig")) : null;
     }
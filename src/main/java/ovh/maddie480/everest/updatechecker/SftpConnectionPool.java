@@ -0,0 +1,176 @@
+package ovh.maddie480.everest.updatechecker;
+
+import com.jcraft.jsch.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * Keeps SFTP connections to Banana Mirror open between actions, so that each upload or deletion
+ * does not need its own SSH handshake. Connections are checked before being reused, and dropped if they are broken.
+ * This can be called from multiple threads at once: each thread borrows its own connection.
+ * {@link #closeAll()} should be called once the mirror sync is over.
+ */
+final class SftpConnectionPool {
+    private static final Logger log = LoggerFactory.getLogger(SftpConnectionPool.class);
+
+    // connections that were not used for this long are checked with a request to the server before being reused
+    private static final long HEALTH_CHECK_AFTER_IDLE_MILLIS = 30_000;
+
+    private static class Connection {
+        private final Session session;
+        private final ChannelSftp channel;
+
+        // the directory the connection started in, that relative directories are resolved against
+        private final String homeDirectory;
+
+        // absolute path of the directory the channel is in, or null if it is unknown
+        private String currentDirectory = null;
+        private long lastUsed = System.currentTimeMillis();
+
+        private Connection(Session session, ChannelSftp channel, String homeDirectory) {
+            this.session = session;
+            this.channel = channel;
+            this.homeDirectory = homeDirectory;
+        }
+
+        /**
+         * Turns a directory from the config into an absolute path, so that changing to it does not depend on
+         * the directory the channel is currently in.
+         */
+        private String resolve(String directory) {
+            if (directory.startsWith("/")) return directory;
+            return homeDirectory.endsWith("/") ? homeDirectory + directory : homeDirectory + "/" + directory;
+        }
+
+        private boolean isAlive() {
+            if (!session.isConnected() || !channel.isConnected() || channel.isClosed()) {
+                return false;
+            }
+
+            if (System.currentTimeMillis() - lastUsed > HEALTH_CHECK_AFTER_IDLE_MILLIS) {
+                try {
+                    channel.stat(".");
+                } catch (SftpException e) {
+                    log.debug("SFTP connection failed health check", e);
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private void close() {
+            channel.exit();
+            session.disconnect();
+        }
+    }
+
+    private static final Deque<Connection> idleConnections = new ConcurrentLinkedDeque<>();
+    private static JSch jsch = null;
+
+    private SftpConnectionPool() {
+    }
+
+    /**
+     * Runs an SFTP action in the given directory, over a connection from the pool.
+     * If the connection turns out to be broken, it is dropped, and the IOException can be retried with a new connection.
+     *
+     * @param directory The directory to run the action in
+     * @param action    The action to run
+     * @throws IOException If the connection or the action failed
+     */
+    static void run(String directory, BananaMirror.SftpAction action) throws IOException {
+        Connection connection = borrow();
+        boolean reusable = false;
+        boolean inDirectory = false;
+
+        try {
+            String absoluteDirectory = connection.resolve(directory);
+            if (!absoluteDirectory.equals(connection.currentDirectory)) {
+                connection.currentDirectory = null;
+                connection.channel.cd(absoluteDirectory);
+                connection.currentDirectory = absoluteDirectory;
+            }
+            inDirectory = true;
+
+            action.doSftpAction(connection.channel);
+            reusable = true;
+        } catch (SftpException e) {
+            // errors like "no such file" during the action leave the connection usable, unlike a lost connection.
+            // if changing directories failed, the connection is dropped instead, since we cannot tell where it is now
+            reusable = inDirectory && connection.session.isConnected() && connection.channel.isConnected()
+                    && e.id != ChannelSftp.SSH_FX_CONNECTION_LOST && e.id != ChannelSftp.SSH_FX_NO_CONNECTION;
+            throw new IOException(e);
+        } finally {
+            if (reusable) {
+                connection.lastUsed = System.currentTimeMillis();
+                idleConnections.push(connection);
+            } else {
+                log.debug("Dropping SFTP connection after an error");
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Disconnects all connections in the pool.
+     */
+    static void closeAll() {
+        Connection connection;
+        int count = 0;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+            count++;
+        }
+
+        if (count > 0) {
+            log.debug("Closed {} SFTP connection(s)", count);
+        }
+    }
+
+    private static Connection borrow() throws IOException {
+        Connection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            if (connection.isAlive()) {
+                return connection;
+            }
+
+            log.debug("Dropping broken SFTP connection");
+            connection.close();
+        }
+
+        return connect();
+    }
+
+    private static Connection connect() throws IOException {
+        Session session = null;
+        try {
+            session = getJSch().getSession(Main.serverConfig.bananaMirrorConfig.username, Main.serverConfig.bananaMirrorConfig.serverAddress);
+            session.setPassword(Main.serverConfig.bananaMirrorConfig.password);
+            session.connect();
+
+            ChannelSftp sftp = (ChannelSftp) session.openChannel("sftp");
+            sftp.connect();
+
+            log.debug("Opened new SFTP connection to {}", Main.serverConfig.bananaMirrorConfig.serverAddress);
+            return new Connection(session, sftp, sftp.pwd());
+        } catch (JSchException | SftpException e) {
+            if (session != null) {
+                session.disconnect();
+            }
+            throw new IOException(e);
+        }
+    }
+
+    private static synchronized JSch getJSch() throws JSchException {
+        if (jsch == null) {
+            jsch = new JSch();
+            jsch.setKnownHosts(Main.serverConfig.bananaMirrorConfig.knownHosts);
+        }
+        return jsch;
+    }
+}
@@ -0,0 +1,150 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.apache.commons.io.function.IOConsumer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A small binary file made of tagged sections, used to save the update checker state between runs.
+ * <p>
+ * Each section is identified by a tag, and has its own version, so that its format can evolve: readers check the
+ * version of the section and convert older formats, and sections with an unknown tag are kept as is when the file is
+ * written back, so that going back to an older version of the update checker does not lose them.
+ * The whole file is checked with a CRC32, and it is written to disk before being moved over the previous file,
+ * so that a crash while saving leaves either the old file or the new one.
+ */
+final class StateFile {
+    private static final int MAGIC = 0x45554353; // "EUCS"
+    private static final int FORMAT_VERSION = 1;
+
+    private record Section(int version, byte[] contents) {
+    }
+
+    private final Map<Integer, Section> sections = new TreeMap<>();
+
+    /**
+     * Reads a state file.
+     *
+     * @param file The file to read
+     * @return The contents of the file, or an empty state if it does not exist
+     * @throws IOException If the file could not be read, or is corrupted
+     */
+    static StateFile read(Path file) throws IOException {
+        StateFile state = new StateFile();
+        if (!Files.exists(file)) return state;
+
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length < 12) throw new IOException("State file " + file + " is truncated");
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+            throw new IOException("State file " + file + " is corrupted (checksum mismatch)");
+        }
+
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+        if (is.readInt() != MAGIC) throw new IOException("File " + file + " is not a state file");
+        int formatVersion = is.readInt();
+        if (formatVersion != FORMAT_VERSION) throw new IOException("State file " + file + " has an unsupported format version: " + formatVersion);
+
+        int sectionCount = is.readInt();
+        for (int i = 0; i < sectionCount; i++) {
+            int tag = is.readInt();
+            int version = is.readInt();
+            int length = is.readInt();
+            if (length < 0 || length > is.available()) throw new IOException("State file " + file + " has an invalid section length: " + length);
+
+            byte[] contents = new byte[length];
+            is.readFully(contents);
+            state.sections.put(tag, new Section(version, contents));
+        }
+
+        return state;
+    }
+
+    /**
+     * @return The version the section with the given tag was written with, or 0 if there is no such section
+     */
+    int getSectionVersion(int tag) {
+        Section section = sections.get(tag);
+        return section == null ? 0 : section.version();
+    }
+
+    /**
+     * @return A stream to read the contents of the section with the given tag, or null if there is no such section
+     */
+    DataInputStream getSection(int tag) {
+        Section section = sections.get(tag);
+        return section == null ? null : new DataInputStream(new ByteArrayInputStream(section.contents()));
+    }
+
+    /**
+     * Adds a section to the file, replacing any section with the same tag.
+     *
+     * @param tag     The tag of the section
+     * @param version The version of the section format
+     * @param writer  Writes the contents of the section
+     */
+    void putSection(int tag, int version, IOConsumer<DataOutputStream> writer) throws IOException {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(contents)) {
+            writer.accept(os);
+        }
+        sections.put(tag, new Section(version, contents.toByteArray()));
+    }
+
+    /**
+     * Writes the state to a file, and waits for it to be on disk.
+     * Use {@link #commit(Path, Path)} to move it over the previous state once it should replace it.
+     */
+    void write(Path file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bytes)) {
+            os.writeInt(MAGIC);
+            os.writeInt(FORMAT_VERSION);
+            os.writeInt(sections.size());
+            for (Map.Entry<Integer, Section> section : sections.entrySet()) {
+                os.writeInt(section.getKey());
+                os.writeInt(section.getValue().version());
+                os.writeInt(section.getValue().contents().length);
+                os.write(section.getValue().contents());
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            os.writeInt((int) crc.getValue());
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Replaces a state file with one that was written with {@link #write(Path)}, atomically.
+     */
+    static void commit(Path writtenFile, Path file) throws IOException {
+        Files.move(writtenFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // make sure the rename itself is on disk (this is not supported on all platforms, and only matters if the machine crashes)
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // ignore, the file was moved anyway
+        }
+    }
+}
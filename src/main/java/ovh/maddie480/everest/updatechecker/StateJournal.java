@@ -0,0 +1,153 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.apache.commons.io.function.IOConsumer;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only journal of changes made to a state file, so that saving a change does not require rewriting the whole file.
+ * The state file itself (the snapshot) is only rewritten when the journal gets long, or when the journal is closed:
+ * this is called compaction. To load the state, read the snapshot, then replay the records returned by {@link #open}.
+ * <p>
+ * Records are single lines of text, and replaying them must give the same result even if they were already applied
+ * to the snapshot, since the process could be killed between the snapshot being rewritten and the journal being cleared.
+ * This is not thread-safe.
+ */
+final class StateJournal implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(StateJournal.class);
+
+    // number of records after which the snapshot gets rewritten
+    private static final int COMPACTION_THRESHOLD = 500;
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final IOConsumer<OutputStream> snapshotWriter;
+    private final List<String> recordsToReplay;
+
+    private BufferedWriter journalWriter = null;
+    private int recordCount;
+
+    /**
+     * Opens the journal associated to a state file. The journal is stored next to it, with a .journal extension.
+     *
+     * @param snapshotFile   The state file
+     * @param snapshotWriter Writes the whole current state to the given stream, in the same format as the state file
+     * @return The journal, whose {@link #getRecordsToReplay()} should be applied to the state loaded from the state file
+     * @throws IOException If the journal could not be read
+     */
+    static StateJournal open(Path snapshotFile, IOConsumer<OutputStream> snapshotWriter) throws IOException {
+        return new StateJournal(snapshotFile, snapshotWriter);
+    }
+
+    private StateJournal(Path snapshotFile, IOConsumer<OutputStream> snapshotWriter) throws IOException {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".journal");
+        this.snapshotWriter = snapshotWriter;
+        this.recordsToReplay = readRecords(journalFile);
+        this.recordCount = recordsToReplay.size();
+
+        if (!recordsToReplay.isEmpty()) {
+            log.info("Replaying {} record(s) from {}", recordsToReplay.size(), journalFile);
+        }
+    }
+
+    /**
+     * @return The records that were saved in the journal since the last compaction
+     */
+    List<String> getRecordsToReplay() {
+        return recordsToReplay;
+    }
+
+    /**
+     * Saves a record to the journal, and compacts it if it got too long.
+     *
+     * @param record The record, that should not contain line breaks
+     * @throws IOException If the record could not be written
+     */
+    void append(String record) throws IOException {
+        if (journalWriter == null) {
+            journalWriter = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        journalWriter.write(record);
+        journalWriter.write('\n');
+        journalWriter.flush();
+        recordCount++;
+
+        if (recordCount >= COMPACTION_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the state file with the current state, and clears the journal.
+     *
+     * @throws IOException If the state file could not be written
+     */
+    void compact() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+            journalWriter = null;
+        }
+
+        if (recordCount == 0 && Files.exists(snapshotFile)) return;
+
+        log.debug("Compacting {} record(s) into {}", recordCount, snapshotFile);
+        Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel));
+            snapshotWriter.accept(CloseShieldOutputStream.wrap(os)); // the channel needs to stay open until it is forced to disk
+            os.flush();
+            channel.force(true);
+        }
+        Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Files.deleteIfExists(journalFile);
+        recordCount = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        compact();
+    }
+
+    private static List<String> readRecords(Path journalFile) throws IOException {
+        List<String> records = new ArrayList<>();
+        if (!Files.exists(journalFile)) return records;
+
+        byte[] bytes = Files.readAllBytes(journalFile);
+        int completeLength = bytes.length;
+        while (completeLength > 0 && bytes[completeLength - 1] != '\n') {
+            completeLength--;
+        }
+
+        if (completeLength < bytes.length) {
+            // the process was killed while writing this record: cut it off, so that the next record does not get appended to it
+            log.warn("Dropping incomplete record at the end of {}", journalFile);
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.truncate(completeLength);
+                channel.force(true);
+            }
+        }
+
+        // only complete lines are decoded, since the incomplete one may end in the middle of a UTF-8 character
+        String contents = new String(bytes, 0, completeLength, StandardCharsets.UTF_8);
+        int start = 0;
+        int end;
+        while ((end = contents.indexOf('\n', start)) != -1) {
+            records.add(contents.substring(start, end));
+            start = end + 1;
+        }
+
+        return records;
+    }
+}
@@ -0,0 +1,116 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.apache.commons.io.function.IORunnable;
+import org.apache.commons.io.function.IOSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+
+/**
+ * Runs Banana Mirror transfers (uploads and deletions) in parallel, with at most ParallelTransfers of them at once.
+ * Each transfer comes with an action that records its result (typically updating and saving the list of mirrored files):
+ * those actions run on the thread that submitted the transfers, in the order the transfers were submitted,
+ * so that they do not need to be thread-safe.
+ */
+final class TransferScheduler implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(TransferScheduler.class);
+
+    private record PendingTransfer(String description, Future<TransferResult> result, IORunnable onSuccess) {
+    }
+
+    private record TransferResult(long bytes, long durationMillis) {
+    }
+
+    private final int parallelism;
+    private final ExecutorService pool;
+    private final Deque<PendingTransfer> pendingTransfers = new ArrayDeque<>();
+    private IOException firstError = null;
+
+    TransferScheduler(String name) {
+        parallelism = Main.serverConfig.bananaMirrorConfig.parallelTransfers;
+        pool = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "transfer-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts a transfer, or queues it if ParallelTransfers transfers are already running.
+     *
+     * @param description What is being transferred, for logging
+     * @param transfer    The transfer itself, that returns the amount of bytes that were transferred
+     * @param onSuccess   What to do once the transfer succeeded, run on the calling thread in submission order
+     * @throws IOException If recording the result of an earlier transfer failed
+     */
+    void submit(String description, IOSupplier<Long> transfer, IORunnable onSuccess) throws IOException {
+        Future<TransferResult> result = pool.submit(() -> {
+            long startMillis = System.currentTimeMillis();
+            long bytes = transfer.get();
+            return new TransferResult(bytes, System.currentTimeMillis() - startMillis);
+        });
+        pendingTransfers.add(new PendingTransfer(description, result, onSuccess));
+
+        // record results as we go, so that we don't lose them all if the process gets killed
+        while (pendingTransfers.size() > parallelism * 2) {
+            completeNext();
+        }
+    }
+
+    /**
+     * Waits for all transfers to be over, and records their results.
+     *
+     * @throws IOException If a transfer failed: the first error is thrown, after the results of the other transfers were recorded
+     */
+    void finish() throws IOException {
+        while (!pendingTransfers.isEmpty()) {
+            completeNext();
+        }
+
+        if (firstError != null) {
+            IOException error = firstError;
+            firstError = null;
+            throw error;
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private void completeNext() throws IOException {
+        PendingTransfer transfer = pendingTransfers.poll();
+
+        TransferResult result;
+        try {
+            result = transfer.result().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for transfer of " + transfer.description(), e);
+        } catch (ExecutionException e) {
+            // keep going, so that the transfers that succeeded are recorded
+            IOException error = (e.getCause() instanceof IOException io ? io : new IOException(e.getCause()));
+            log.error("Transfer of {} failed", transfer.description(), error);
+            if (firstError == null) {
+                firstError = error;
+            } else {
+                firstError.addSuppressed(error);
+            }
+            return;
+        }
+
+        if (result.bytes() > 0) {
+            log.debug("Transferred {} ({} bytes) in {} ms ({} KB/s)", transfer.description(), result.bytes(), result.durationMillis(),
+                    result.bytes() * 1000 / 1024 / Math.max(1, result.durationMillis()));
+        } else {
+            log.debug("Transferred {} in {} ms", transfer.description(), result.durationMillis());
+        }
+
+        transfer.onSuccess().run();
+    }
+}
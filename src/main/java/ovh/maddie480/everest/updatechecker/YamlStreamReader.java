@@ -0,0 +1,190 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.apache.commons.io.function.IOConsumer;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.*;
+import org.yaml.snakeyaml.nodes.*;
+import org.yaml.snakeyaml.parser.Parser;
+import org.yaml.snakeyaml.parser.ParserImpl;
+import org.yaml.snakeyaml.reader.StreamReader;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Reads a YAML file whose root is a list of maps, one element at a time, instead of loading the whole file in memory
+ * like {@link YamlUtil#load(InputStream)} does. Only the requested fields of each element are turned into Java objects,
+ * the other ones are skipped as they are read.
+ * <p>
+ * Since only one element is in memory at a time, the file does not need to fit in SnakeYAML's code point limit.
+ * Elements are loaded with {@link SafeConstructor}, so they give the same objects as {@link YamlUtil#load(InputStream)}.
+ */
+final class YamlStreamReader {
+    private static class RecordConstructor extends SafeConstructor {
+        public RecordConstructor(LoaderOptions loaderOptions) {
+            super(loaderOptions);
+        }
+
+        Object construct(Node node) {
+            return constructDocument(node);
+        }
+    }
+
+    private final Parser parser;
+    private final Resolver resolver = new Resolver();
+    private final RecordConstructor constructor;
+
+    // anchored nodes, that aliases later in the file can refer to
+    private final Map<String, Node> anchors = new HashMap<>();
+
+    private YamlStreamReader(InputStream is) {
+        // memory usage does not depend on the size of the file, so there is no need to limit it
+        LoaderOptions loaderOptions = new LoaderOptions();
+        loaderOptions.setCodePointLimit(Integer.MAX_VALUE);
+
+        parser = new ParserImpl(new StreamReader(new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))), loaderOptions);
+        constructor = new RecordConstructor(loaderOptions);
+    }
+
+    /**
+     * Reads all elements of the list at the root of a YAML file.
+     *
+     * @param is       The stream to read the file from
+     * @param fields   The fields to keep in each element, or null to keep all of them
+     * @param consumer Called with each element, in order
+     */
+    static void forEachRecord(InputStream is, Set<String> fields, IOConsumer<Map<String, Object>> consumer) throws IOException {
+        new YamlStreamReader(is).readRecords(fields, consumer);
+    }
+
+    private void readRecords(Set<String> fields, IOConsumer<Map<String, Object>> consumer) throws IOException {
+        expect(Event.ID.StreamStart);
+
+        if (parser.checkEvent(Event.ID.StreamEnd)) {
+            // empty file
+            return;
+        }
+
+        expect(Event.ID.DocumentStart);
+        expect(Event.ID.SequenceStart);
+
+        while (!parser.checkEvent(Event.ID.SequenceEnd)) {
+            consumer.accept((Map<String, Object>) constructor.construct(composeRecord(fields)));
+        }
+
+        expect(Event.ID.SequenceEnd);
+        expect(Event.ID.DocumentEnd);
+    }
+
+    /**
+     * Builds the node of an element of the list, skipping the fields that were not requested.
+     */
+    private Node composeRecord(Set<String> fields) {
+        if (fields == null || !parser.checkEvent(Event.ID.MappingStart)) {
+            return composeNode();
+        }
+
+        MappingStartEvent start = (MappingStartEvent) parser.getEvent();
+        List<NodeTuple> tuples = new ArrayList<>();
+
+        while (!parser.checkEvent(Event.ID.MappingEnd)) {
+            Node key = composeNode();
+            if (key instanceof ScalarNode scalarKey && fields.contains(scalarKey.getValue())) {
+                tuples.add(new NodeTuple(key, composeNode()));
+            } else {
+                skipNode();
+            }
+        }
+
+        Event end = parser.getEvent();
+        MappingNode node = new MappingNode(getTag(start.getTag(), Tag.MAP), isResolved(start.getTag()), tuples, start.getStartMark(), end.getEndMark(), start.getFlowStyle());
+        registerAnchor(start, node);
+        return node;
+    }
+
+    /**
+     * Builds a node from the events of the parser, the same way SnakeYAML's Composer does.
+     */
+    private Node composeNode() {
+        Event event = parser.getEvent();
+
+        if (event instanceof AliasEvent alias) {
+            Node node = anchors.get(alias.getAnchor());
+            if (node == null) throw new YAMLException("Found undefined alias " + alias.getAnchor() + " at " + event.getStartMark());
+            return node;
+        }
+
+        Node node;
+        if (event instanceof ScalarEvent scalar) {
+            String tag = scalar.getTag();
+            boolean resolved = isResolved(tag);
+            Tag nodeTag = resolved ? resolver.resolve(NodeId.scalar, scalar.getValue(), scalar.getImplicit().canOmitTagInPlainScalar()) : new Tag(tag);
+            node = new ScalarNode(nodeTag, resolved, scalar.getValue(), scalar.getStartMark(), scalar.getEndMark(), scalar.getScalarStyle());
+        } else if (event instanceof SequenceStartEvent start) {
+            List<Node> items = new ArrayList<>();
+            while (!parser.checkEvent(Event.ID.SequenceEnd)) {
+                items.add(composeNode());
+            }
+            Event end = parser.getEvent();
+            node = new SequenceNode(getTag(start.getTag(), Tag.SEQ), isResolved(start.getTag()), items, start.getStartMark(), end.getEndMark(), start.getFlowStyle());
+        } else if (event instanceof MappingStartEvent start) {
+            List<NodeTuple> tuples = new ArrayList<>();
+            while (!parser.checkEvent(Event.ID.MappingEnd)) {
+                Node key = composeNode();
+                tuples.add(new NodeTuple(key, composeNode()));
+            }
+            Event end = parser.getEvent();
+            node = new MappingNode(getTag(start.getTag(), Tag.MAP), isResolved(start.getTag()), tuples, start.getStartMark(), end.getEndMark(), start.getFlowStyle());
+        } else {
+            throw new YAMLException("Unexpected event " + event + " at " + event.getStartMark());
+        }
+
+        registerAnchor((NodeEvent) event, node);
+        return node;
+    }
+
+    /**
+     * Skips the events of a node, without building it. Anchored nodes are built anyway, since an alias may refer to them.
+     */
+    private void skipNode() {
+        Event event = parser.peekEvent();
+        if (event instanceof NodeEvent nodeEvent && nodeEvent.getAnchor() != null) {
+            composeNode();
+            return;
+        }
+
+        parser.getEvent();
+        if (event instanceof CollectionStartEvent) {
+            while (!parser.checkEvent(Event.ID.SequenceEnd) && !parser.checkEvent(Event.ID.MappingEnd)) {
+                skipNode();
+            }
+            parser.getEvent();
+        }
+    }
+
+    private void registerAnchor(NodeEvent event, Node node) {
+        if (event.getAnchor() != null) {
+            anchors.put(event.getAnchor(), node);
+        }
+    }
+
+    // nodes without an explicit tag get the default one
+    private static boolean isResolved(String tag) {
+        return tag == null || tag.equals("!");
+    }
+
+    private static Tag getTag(String tag, Tag defaultTag) {
+        return isResolved(tag) ? defaultTag : new Tag(tag);
+    }
+
+    private void expect(Event.ID id) {
+        Event event = parser.getEvent();
+        if (!event.is(id)) {
+            throw new YAMLException("Expected " + id + ", found " + event + " at " + event.getStartMark());
+        }
+    }
+}
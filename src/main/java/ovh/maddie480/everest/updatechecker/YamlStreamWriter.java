@@ -0,0 +1,134 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.emitter.Emitter;
+import org.yaml.snakeyaml.events.*;
+import org.yaml.snakeyaml.nodes.*;
+import org.yaml.snakeyaml.representer.Representer;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+
+/**
+ * Writes a YAML file whose root is a list or a map, one element at a time, instead of building the whole
+ * file in memory like {@link YamlUtil#dump(Object, OutputStream)} does. The output is the same as what
+ * {@link YamlUtil#dump(Object, OutputStream)} would give for the same list or map, except that a list or map
+ * that appears several times is written out in full each time, instead of being written once with an anchor
+ * and referred to with aliases.
+ * <p>
+ * Usage: call {@link #startSequence()} or {@link #startMapping()}, then {@link #writeValue(Object)} for each element
+ * (or {@link #writeEntry(String, Object)} for each entry of a mapping), then {@link #finish()}, then {@link #close()}.
+ * If the stream is closed without calling {@link #finish()} (because something failed while writing, for example),
+ * the document is left unfinished. This is not thread-safe.
+ */
+final class YamlStreamWriter implements Closeable {
+    private final Writer writer;
+    private final Emitter emitter;
+    private final Representer representer;
+    private final Resolver resolver = new Resolver();
+
+    // true for mappings, false for sequences
+    private final Deque<Boolean> openCollections = new ArrayDeque<>();
+
+    YamlStreamWriter(OutputStream os) throws IOException {
+        DumperOptions dumperOptions = YamlUtil.getDumperOptions();
+        writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        emitter = new Emitter(writer, dumperOptions);
+        representer = new Representer(dumperOptions);
+        representer.setDefaultFlowStyle(dumperOptions.getDefaultFlowStyle());
+        representer.setDefaultScalarStyle(dumperOptions.getDefaultScalarStyle());
+
+        emitter.emit(new StreamStartEvent(null, null));
+        emitter.emit(new DocumentStartEvent(null, null, false, null, Collections.emptyMap()));
+    }
+
+    void startSequence() throws IOException {
+        emitter.emit(new SequenceStartEvent(null, Tag.SEQ.getValue(), true, null, null, DumperOptions.FlowStyle.BLOCK));
+        openCollections.push(false);
+    }
+
+    void startMapping() throws IOException {
+        emitter.emit(new MappingStartEvent(null, Tag.MAP.getValue(), true, null, null, DumperOptions.FlowStyle.BLOCK));
+        openCollections.push(true);
+    }
+
+    /**
+     * Ends the list or map that was started last.
+     */
+    void end() throws IOException {
+        if (openCollections.pop()) {
+            emitter.emit(new MappingEndEvent(null, null));
+        } else {
+            emitter.emit(new SequenceEndEvent(null, null));
+        }
+    }
+
+    /**
+     * Writes an entry of the current map.
+     */
+    void writeEntry(String key, Object value) throws IOException {
+        writeValue(key);
+        writeValue(value);
+    }
+
+    /**
+     * Writes a value (scalar, list or map) as an element of the current list, or as a key or value of the current map.
+     */
+    void writeValue(Object value) throws IOException {
+        emitNode(representer.represent(value));
+    }
+
+    /**
+     * Ends all lists and maps that are still open, and ends the document.
+     */
+    void finish() throws IOException {
+        while (!openCollections.isEmpty()) {
+            end();
+        }
+        emitter.emit(new DocumentEndEvent(null, null, false));
+        emitter.emit(new StreamEndEvent(null, null));
+        writer.flush();
+    }
+
+    /**
+     * Closes the underlying stream, without ending the document if {@link #finish()} was not called.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    // turns a node into events, the same way SnakeYAML's Serializer does, except that nodes are never turned into aliases
+    private void emitNode(Node node) throws IOException {
+        switch (node) {
+            case ScalarNode scalarNode -> {
+                Tag detectedTag = resolver.resolve(NodeId.scalar, scalarNode.getValue(), true);
+                Tag defaultTag = resolver.resolve(NodeId.scalar, scalarNode.getValue(), false);
+                ImplicitTuple implicit = new ImplicitTuple(node.getTag().equals(detectedTag), node.getTag().equals(defaultTag));
+                emitter.emit(new ScalarEvent(null, node.getTag().getValue(), implicit, scalarNode.getValue(), null, null, scalarNode.getScalarStyle()));
+            }
+            case SequenceNode sequenceNode -> {
+                boolean implicit = node.getTag().equals(resolver.resolve(NodeId.sequence, null, true));
+                emitter.emit(new SequenceStartEvent(null, node.getTag().getValue(), implicit, null, null, sequenceNode.getFlowStyle()));
+                for (Node item : sequenceNode.getValue()) {
+                    emitNode(item);
+                }
+                emitter.emit(new SequenceEndEvent(null, null));
+            }
+            case MappingNode mappingNode -> {
+                boolean implicit = node.getTag().equals(resolver.resolve(NodeId.mapping, null, true));
+                emitter.emit(new MappingStartEvent(null, node.getTag().getValue(), implicit, null, null, mappingNode.getFlowStyle()));
+                for (NodeTuple tuple : mappingNode.getValue()) {
+                    emitNode(tuple.getKeyNode());
+                    emitNode(tuple.getValueNode());
+                }
+                emitter.emit(new MappingEndEvent(null, null));
+            }
+            default -> throw new IllegalArgumentException("Unknown node type: " + node.getClass());
+        }
+    }
+}
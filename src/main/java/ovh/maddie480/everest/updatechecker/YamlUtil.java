@@ -21,40 +21,46 @@ public class YamlUtil {
         }
     }
 
-    private static final Yaml yaml;
-    private static final Yaml yamlNoFloats;
+    // Yaml instances are not thread-safe, so each thread gets its own: this way, YAML files can be read and written in parallel
+    private static final ThreadLocal<Yaml> yaml = ThreadLocal.withInitial(() -> createYaml(false));
+    private static final ThreadLocal<Yaml> yamlNoFloats = ThreadLocal.withInitial(() -> createYaml(true));
 
-    static {
-        // mod_search_database.yaml is larger than 3 MB, which is the default code point limit in SnakeYAML.
+    private static Yaml createYaml(boolean noFloats) {
+        // some databases are larger than 3 MB, which is the default code point limit in SnakeYAML.
         // So we need to raise it a bit! We set it to 15 MB instead.
+        // (modsearchdatabase.yaml is the largest one, and is read with YamlStreamReader instead, which has no limit.)
         LoaderOptions loaderOptions = new LoaderOptions();
         loaderOptions.setCodePointLimit(15 * 1024 * 1024);
 
+        DumperOptions dumperOptions = getDumperOptions();
+
+        // use SafeConstructor to avoid callers being able to construct arbitrary Java objects
+        SafeConstructor constructor = noFloats ? new SafeConstructorNoFloats(loaderOptions) : new SafeConstructor(loaderOptions);
+        return new Yaml(constructor, new Representer(dumperOptions), dumperOptions, loaderOptions);
+    }
+
+    /**
+     * Gives the options used to write YAML files, that {@link YamlStreamWriter} shares.
+     */
+    static DumperOptions getDumperOptions() {
         // use the block flow style rather than the default "block at the root level, flow on deeper levels" default.
         DumperOptions dumperOptions = new DumperOptions();
         dumperOptions.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-
-        // use SafeConstructor to avoid callers being able to construct arbitrary Java objects
-        yaml = new Yaml(new SafeConstructor(loaderOptions), new Representer(dumperOptions), dumperOptions, loaderOptions);
-        yamlNoFloats = new Yaml(new SafeConstructorNoFloats(loaderOptions), new Representer(dumperOptions), dumperOptions, loaderOptions);
+        return dumperOptions;
     }
 
     /**
      * Loads YAML data from an input stream.
      */
     public static <T> T load(InputStream is) {
-        synchronized (yaml) {
-            return yaml.load(is);
-        }
+        return yaml.get().load(is);
     }
 
     /**
      * Loads YAML data from an input stream, turning all floats into strings.
      */
     public static <T> T loadNoFloats(InputStream is) {
-        synchronized (yamlNoFloats) {
-            return yamlNoFloats.load(is);
-        }
+        return yamlNoFloats.get().load(is);
     }
 
 
@@ -62,10 +68,8 @@ public class YamlUtil {
      * Dumps YAML data to an output stream.
      */
     public static void dump(Object data, OutputStream os) throws IOException {
-        synchronized (yaml) {
-            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
-                yaml.dump(data, writer);
-            }
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+            yaml.get().dump(data, writer);
         }
     }
 }
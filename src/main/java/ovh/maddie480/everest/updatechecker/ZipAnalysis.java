@@ -0,0 +1,59 @@
+package ovh.maddie480.everest.updatechecker;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Everything the update checker needs to know about a zip, read in a single pass by {@link ZipAnalyzer}.
+ * Errors are kept here instead of being thrown, so that each module can report them the way it needs to.
+ */
+public class ZipAnalysis {
+    /**
+     * A Rich Presence icon candidate found in the zip, along with the xxHash of its contents.
+     * The contents themselves can be read with {@link ZipAnalyzer#readRichPresenceIcon}.
+     */
+    record RichPresenceIcon(String path, String xxHash) {
+    }
+
+    final String xxHash;
+
+    // if this is set, the zip could not be opened, and nothing else in this object is filled in.
+    IOException zipError;
+
+    // all files in the zip (directories excluded), and errors that happened while going through them
+    final List<String> fileList = new ArrayList<>();
+    final List<IllegalArgumentException> walkthroughErrors = new ArrayList<>();
+
+    // everest.yaml contents: the file could be missing, could not be extracted, or could not be parsed
+    boolean hasEverestYaml;
+    List<Map<String, Object>> everestYaml;
+    IOException everestYamlReadError;
+    Exception everestYamlParseError;
+
+    // dependencies of all mods in the everest.yaml, minus the ones defined in the everest.yaml itself
+    final Map<String, String> dependencies = new HashMap<>();
+    final Map<String, String> optionalDependencies = new HashMap<>();
+    Exception dependencyError;
+
+    // Ahorn plugin contents, filled in if there are files in the Ahorn folder
+    boolean hasAhornPlugins;
+    final List<String> ahornEntities = new LinkedList<>();
+    final List<String> ahornTriggers = new LinkedList<>();
+    final List<String> ahornEffects = new LinkedList<>();
+    Exception ahornError;
+
+    // Lönn plugin contents, filled in if there are files in the Loenn folder
+    boolean hasLoennPlugins;
+    final Set<String> loennEntities = new HashSet<>();
+    final Set<String> loennTriggers = new HashSet<>();
+    final Set<String> loennEffects = new HashSet<>();
+    Exception loennError;
+
+    // Rich Presence icon candidates
+    final List<RichPresenceIcon> richPresenceIcons = new ArrayList<>();
+    IOException richPresenceIconError;
+
+    ZipAnalysis(String xxHash) {
+        this.xxHash = xxHash;
+    }
+}
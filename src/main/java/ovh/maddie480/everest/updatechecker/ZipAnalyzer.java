@@ -0,0 +1,272 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.Triple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static ovh.maddie480.everest.updatechecker.DatabaseUpdater.checkZipSignature;
+
+/**
+ * Opens each downloaded zip once, and extracts everything all modules need from it:
+ * file listing, everest.yaml and dependencies, Ahorn and Lönn plugins, and Rich Presence icons.
+ * Analyses are cached by xxHash until {@link #clearCache()} is called. This can be called from multiple threads at once.
+ */
+public final class ZipAnalyzer {
+    private static final Logger log = LoggerFactory.getLogger(ZipAnalyzer.class);
+
+    private static final Map<String, ZipAnalysis> analysesByHash = new ConcurrentHashMap<>();
+    private static final Map<String, String> hashesByUrl = new ConcurrentHashMap<>();
+
+    // used to avoid analyzing the same file twice if 2 threads ask for it at the same time
+    private static final Map<String, Object> analysisLocks = new ConcurrentHashMap<>();
+
+    private ZipAnalyzer() {
+    }
+
+    /**
+     * Downloads a file from GameBanana if needed, and analyzes it.
+     *
+     * @param fileUrl The file download URL
+     * @return The analysis of the file
+     * @throws IOException If the file could not be downloaded
+     */
+    static ZipAnalysis analyze(String fileUrl) throws IOException {
+        return analyze(fileUrl, null);
+    }
+
+    /**
+     * Downloads a file from GameBanana if needed, and analyzes it.
+     *
+     * @param fileUrl      The file download URL
+     * @param expectedSize The size GameBanana gave for the file, or null if it is unknown
+     * @return The analysis of the file
+     * @throws IOException If the file could not be downloaded
+     */
+    static ZipAnalysis analyze(String fileUrl, Integer expectedSize) throws IOException {
+        synchronized (analysisLocks.computeIfAbsent(fileUrl, k -> new Object())) {
+            String knownHash = hashesByUrl.get(fileUrl);
+            if (knownHash != null) {
+                log.trace("Analysis of {} found in cache", fileUrl);
+                return analysesByHash.get(knownHash);
+            }
+
+            FileDownloader.DownloadResult download = (expectedSize == null ?
+                    FileDownloader.downloadFile(fileUrl) : FileDownloader.downloadFile(fileUrl, expectedSize));
+            String xxHash = download.xxHash();
+
+            ZipAnalysis analysis = analysesByHash.get(xxHash);
+            if (analysis == null) {
+                log.debug("Analyzing zip {} with hash {}", fileUrl, xxHash);
+                analysis = analyzeZip(fileUrl, download.path(), xxHash);
+                analysesByHash.put(xxHash, analysis);
+            } else {
+                log.debug("Zip {} has the same hash as a zip that was already analyzed ({})", fileUrl, xxHash);
+            }
+
+            hashesByUrl.put(fileUrl, xxHash);
+            return analysis;
+        }
+    }
+
+    /**
+     * Forgets about all analyzed zips, to free up memory.
+     */
+    static void clearCache() {
+        analysesByHash.clear();
+        hashesByUrl.clear();
+        analysisLocks.clear();
+    }
+
+    private static ZipAnalysis analyzeZip(String fileUrl, Path file, String xxHash) {
+        ZipAnalysis analysis = new ZipAnalysis(xxHash);
+
+        try (ZipFile zipFile = ZipFileWithAutoEncoding.open(file.toAbsolutePath().toString(), fileUrl)) {
+            checkZipSignature(file);
+
+            readFileList(zipFile, analysis);
+
+            // each of these reports its own errors, so that a problem with one part of the zip does not make the whole zip unreadable
+            readEverestYaml(zipFile, analysis);
+            readAhornPlugins(zipFile, analysis);
+            readLoennPlugins(zipFile, analysis);
+            readRichPresenceIcons(zipFile, analysis);
+        } catch (IOException e) {
+            analysis.zipError = e;
+        } catch (IllegalArgumentException e) {
+            analysis.zipError = new IOException(e);
+        }
+
+        return analysis;
+    }
+
+    private static void readFileList(ZipFile zipFile, ZipAnalysis analysis) {
+        final Enumeration<? extends ZipEntry> entriesEnum = zipFile.entries();
+        while (entriesEnum.hasMoreElements()) {
+            try {
+                ZipEntry entry = entriesEnum.nextElement();
+                if (!entry.isDirectory()) {
+                    analysis.fileList.add(entry.getName());
+                }
+            } catch (IllegalArgumentException e) {
+                log.warn("Encountered error while going through zip file", e);
+                analysis.walkthroughErrors.add(e);
+            }
+        }
+    }
+
+    private static void readEverestYaml(ZipFile zipFile, ZipAnalysis analysis) {
+        ZipEntry everestYaml = zipFile.getEntry("everest.yaml");
+        if (everestYaml == null) {
+            everestYaml = zipFile.getEntry("everest.yml");
+        }
+
+        analysis.hasEverestYaml = (everestYaml != null);
+        if (everestYaml == null) {
+            analysis.dependencyError = new IOException("No everest.yaml file found");
+            return;
+        }
+
+        InputStream yamlInputStream;
+        try {
+            yamlInputStream = zipFile.getInputStream(everestYaml);
+        } catch (IOException e) {
+            analysis.everestYamlReadError = e;
+            analysis.dependencyError = e;
+            return;
+        } catch (RuntimeException e) {
+            analysis.everestYamlReadError = new IOException(e);
+            analysis.dependencyError = e;
+            return;
+        }
+
+        try {
+            analysis.everestYaml = YamlUtil.loadNoFloats(yamlInputStream);
+        } catch (Exception e) {
+            analysis.everestYamlParseError = e;
+            analysis.dependencyError = e;
+            return;
+        }
+
+        try {
+            // merge the Dependencies and OptionalDependencies of all mods defined in the everest.yaml
+            for (Map<String, Object> yamlEntry : analysis.everestYaml) {
+                if (yamlEntry.containsKey("Dependencies")) {
+                    DependencyGraphBuilder.addDependenciesFromList(analysis.dependencies,
+                            (List<Map<String, Object>>) yamlEntry.get("Dependencies"), analysis.everestYaml);
+                }
+                if (yamlEntry.containsKey("OptionalDependencies")) {
+                    DependencyGraphBuilder.addDependenciesFromList(analysis.optionalDependencies,
+                            (List<Map<String, Object>>) yamlEntry.get("OptionalDependencies"), analysis.everestYaml);
+                }
+            }
+        } catch (Exception e) {
+            analysis.dependencyError = e;
+        }
+    }
+
+    private static void readAhornPlugins(ZipFile zipFile, ZipAnalysis analysis) {
+        analysis.hasAhornPlugins = analysis.fileList.stream().anyMatch(f -> f.startsWith("Ahorn/"));
+        if (!analysis.hasAhornPlugins) return;
+
+        try {
+            for (String file : analysis.fileList) {
+                if (file.startsWith("Ahorn/") && file.endsWith(".jl")) {
+                    log.debug("Analyzing file {}", file);
+                    InputStream inputStream = zipFile.getInputStream(zipFile.getEntry(file));
+                    ModFilesDatabaseBuilder.extractAhornEntities(analysis.ahornEntities, analysis.ahornTriggers, analysis.ahornEffects, file, inputStream);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            analysis.ahornError = e;
+        }
+    }
+
+    private static void readLoennPlugins(ZipFile zipFile, ZipAnalysis analysis) {
+        analysis.hasLoennPlugins = analysis.fileList.stream().anyMatch(f -> f.startsWith("Loenn/"));
+        if (!analysis.hasLoennPlugins) return;
+
+        try {
+            for (String file : analysis.fileList) {
+                if (file.startsWith("Loenn/") && file.endsWith(".lua")) {
+                    log.debug("Analyzing file {}", file);
+                    InputStream inputStream = zipFile.getInputStream(zipFile.getEntry(file));
+                    ModFilesDatabaseBuilder.extractLoennEntitiesFromPlugin(analysis.loennEntities, analysis.loennTriggers, analysis.loennEffects, file, inputStream);
+                }
+
+                if (file.equals("Loenn/lang/en_gb.lang")) {
+                    try (InputStream inputStream = zipFile.getInputStream(zipFile.getEntry("Loenn/lang/en_gb.lang"));
+                         BufferedReader br = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+
+                        Triple<Set<String>, Set<String>, Set<String>> extractedLoennEntities = ModFilesDatabaseBuilder.extractLoennEntitiesFromLangFile(br);
+                        analysis.loennEntities.addAll(extractedLoennEntities.getLeft());
+                        analysis.loennTriggers.addAll(extractedLoennEntities.getMiddle());
+                        analysis.loennEffects.addAll(extractedLoennEntities.getRight());
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            analysis.loennError = e;
+        }
+    }
+
+    private static void readRichPresenceIcons(ZipFile zipFile, ZipAnalysis analysis) {
+        try {
+            for (String icon : BananaMirrorRichPresenceIcons.findRichPresenceIcons(analysis.fileList)) {
+                // only the hash is kept, the contents are read again by readRichPresenceIcon when they are needed
+                try (InputStream is = openEntry(zipFile, icon)) {
+                    analysis.richPresenceIcons.add(new ZipAnalysis.RichPresenceIcon(icon, DatabaseUpdater.computeXXHash(is)));
+                }
+            }
+        } catch (IOException e) {
+            analysis.richPresenceIconError = e;
+        } catch (RuntimeException e) {
+            analysis.richPresenceIconError = new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the contents of a Rich Presence icon that was found while analyzing a zip.
+     *
+     * @param fileUrl The download URL of the zip
+     * @param icon    The icon, as found in {@link ZipAnalysis#richPresenceIcons}
+     * @return The contents of the icon
+     * @throws IOException If the zip could not be downloaded or read, or if the icon changed since the analysis
+     */
+    static byte[] readRichPresenceIcon(String fileUrl, ZipAnalysis.RichPresenceIcon icon) throws IOException {
+        // the file is normally still around, since downloads are only cleaned up at the end of the run
+        Path file = FileDownloader.downloadFile(fileUrl).path();
+
+        byte[] contents;
+        try (ZipFile zipFile = ZipFileWithAutoEncoding.open(file.toAbsolutePath().toString(), fileUrl);
+             InputStream is = openEntry(zipFile, icon.path())) {
+
+            contents = IOUtils.toByteArray(is);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+
+        if (!icon.xxHash().equals(DatabaseUpdater.computeXXHash(new ByteArrayInputStream(contents)))) {
+            throw new IOException("Icon " + icon.path() + " in " + fileUrl + " changed since the zip was analyzed");
+        }
+        return contents;
+    }
+
+    private static InputStream openEntry(ZipFile zipFile, String name) throws IOException {
+        ZipEntry entry = zipFile.getEntry(name);
+        if (entry == null) throw new IOException("Entry " + name + " could not be found in zip");
+        return zipFile.getInputStream(entry);
+    }
+}
@@ -0,0 +1,124 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that {@link YamlStreamWriter} gives the same output as {@link YamlUtil#dump(Object, java.io.OutputStream)}.
+ */
+class YamlStreamWriterTest {
+    @Test
+    void writesListsLikeDump() throws IOException {
+        List<Object> data = new ArrayList<>();
+        data.add(sampleMod("MaxHelpingHand", 1));
+        data.add(sampleMod("true", 2));
+        data.add(sampleMod("", 3));
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (YamlStreamWriter writer = new YamlStreamWriter(streamed)) {
+            writer.startSequence();
+            for (Object element : data) {
+                writer.writeValue(element);
+            }
+            writer.finish();
+        }
+
+        assertEquals(dump(data), streamed.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void writesMappingsLikeDump() throws IOException {
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("MaxHelpingHand", sampleMod("MaxHelpingHand", 1));
+        data.put("1.0", sampleMod("1.0", 2));
+        data.put("a: b", sampleMod("a: b", 3));
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (YamlStreamWriter writer = new YamlStreamWriter(streamed)) {
+            writer.startMapping();
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                writer.writeEntry(entry.getKey(), entry.getValue());
+            }
+            writer.finish();
+        }
+
+        assertEquals(dump(data), streamed.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void writesEmptyListLikeDump() throws IOException {
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (YamlStreamWriter writer = new YamlStreamWriter(streamed)) {
+            writer.startSequence();
+            writer.finish();
+        }
+
+        assertEquals(dump(Collections.emptyList()), streamed.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void writesSharedInstancesInFull() throws IOException {
+        // YamlUtil.dump would use an anchor and an alias for this list, the streaming writer writes it twice instead
+        List<String> shared = Arrays.asList("Everest", "MaxHelpingHand");
+        Map<String, Object> first = new LinkedHashMap<>();
+        first.put("Dependencies", shared);
+        Map<String, Object> second = new LinkedHashMap<>();
+        second.put("Dependencies", shared);
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (YamlStreamWriter writer = new YamlStreamWriter(streamed)) {
+            writer.startSequence();
+            writer.writeValue(first);
+            writer.writeValue(second);
+            writer.finish();
+        }
+
+        String output = streamed.toString(StandardCharsets.UTF_8);
+        assertFalse(output.contains("&"), output);
+        assertEquals(Arrays.asList(first, second), YamlUtil.load(new ByteArrayInputStream(streamed.toByteArray())));
+    }
+
+    @Test
+    void endsOpenCollectionsOnFinish() throws IOException {
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        try (YamlStreamWriter writer = new YamlStreamWriter(streamed)) {
+            writer.startMapping();
+            writer.writeValue("Mods");
+            writer.startSequence();
+            writer.writeValue("MaxHelpingHand");
+            writer.finish();
+        }
+
+        assertEquals(dump(Collections.singletonMap("Mods", Collections.singletonList("MaxHelpingHand"))), streamed.toString(StandardCharsets.UTF_8));
+    }
+
+    private static Map<String, Object> sampleMod(String name, int id) {
+        Map<String, Object> mod = new LinkedHashMap<>();
+        mod.put("Name", name);
+        mod.put("Version", "1.0." + id);
+        mod.put("GameBananaId", id);
+        mod.put("Size", 12345678901L);
+        mod.put("Featured", id % 2 == 0);
+        mod.put("Description", "Line one\nLine two: with a colon\n  and indentation");
+        mod.put("Author", "Mädchen 🍓");
+        mod.put("Screenshots", Arrays.asList("https://images.gamebanana.com/img/ss/mods/" + id + ".png", "# not a comment"));
+        mod.put("Categories", new ArrayList<>());
+        mod.put("Extra", new HashMap<>());
+        mod.put("Missing", null);
+        mod.put("Nested", Collections.singletonMap("Deeper", Collections.singletonList(Collections.singletonMap("Key", "- value"))));
+        return mod;
+    }
+
+    private static String dump(Object data) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        YamlUtil.dump(data, os);
+        return os.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,116 @@
+package ovh.maddie480.everest.updatechecker;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.representer.Representer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares {@link YamlUtil}, which gives each thread its own Yaml instance, with a single Yaml instance
+ * shared behind a lock (which is what YamlUtil used to do), with more and more threads loading and dumping at once.
+ * This is not run as part of the tests, since the results only make sense on a machine with several cores:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=ovh.maddie480.everest.updatechecker.YamlUtilBenchmark [-Dexec.args="maxThreads operations"]
+ * </pre>
+ * maxThreads defaults to the number of cores, and operations (the number of loads and dumps per measurement) to 400.
+ */
+class YamlUtilBenchmark {
+    private static final Yaml sharedYaml;
+
+    static {
+        LoaderOptions loaderOptions = new LoaderOptions();
+        loaderOptions.setCodePointLimit(15 * 1024 * 1024);
+        DumperOptions dumperOptions = YamlUtil.getDumperOptions();
+        sharedYaml = new Yaml(new SafeConstructor(loaderOptions), new Representer(dumperOptions), dumperOptions, loaderOptions);
+    }
+
+    private interface Operation {
+        void run(byte[] document, Object data) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+
+        // a list shaped like everestupdate.yaml entries
+        List<Object> data = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Map<String, Object> mod = new LinkedHashMap<>();
+            mod.put("Name", "Mod" + i);
+            mod.put("Version", "1.0." + i);
+            mod.put("LastUpdate", 1600000000 + i);
+            mod.put("xxHash", Collections.singletonList(String.format("%016x", i * 0x9E3779B97F4A7C15L)));
+            mod.put("URL", "https://gamebanana.com/mmdl/" + (400000 + i));
+            mod.put("GameBananaType", "Mod");
+            mod.put("GameBananaId", 100000 + i);
+            mod.put("Size", 1024 * i);
+            data.add(mod);
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        YamlUtil.dump(data, os);
+        byte[] document = os.toByteArray();
+
+        System.out.println("Document size: " + document.length + " bytes, " + Runtime.getRuntime().availableProcessors() + " core(s)");
+
+        // 1, 2, 4... threads, then maxThreads
+        SortedSet<Integer> threadCounts = new TreeSet<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(maxThreads);
+
+        for (int threads : threadCounts) {
+            measure("load, shared Yaml + lock", threads, operations, document, data, (doc, d) -> {
+                synchronized (sharedYaml) {
+                    sharedYaml.load(new ByteArrayInputStream(doc));
+                }
+            });
+            measure("load, YamlUtil", threads, operations, document, data,
+                    (doc, d) -> YamlUtil.load(new ByteArrayInputStream(doc)));
+            measure("dump, shared Yaml + lock", threads, operations, document, data, (doc, d) -> {
+                synchronized (sharedYaml) {
+                    sharedYaml.dump(d);
+                }
+            });
+            measure("dump, YamlUtil", threads, operations, document, data,
+                    (doc, d) -> YamlUtil.dump(d, new ByteArrayOutputStream()));
+        }
+    }
+
+    private static void measure(String name, int threads, int operations, byte[] document, Object data, Operation operation) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long elapsedNanos = 0;
+
+            // the first round warms up the JIT and the thread-local instances, only the second one is measured
+            for (int round = 0; round < 2; round++) {
+                List<Future<?>> futures = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int i = 0; i < operations; i++) {
+                    futures.add(executor.submit(() -> {
+                        operation.run(document, data);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                elapsedNanos = System.nanoTime() - start;
+            }
+
+            long elapsedMillis = Math.max(1, elapsedNanos / 1_000_000);
+            System.out.printf("%-25s threads = %2d: %6d ms, %6d operations/s%n", name, threads, elapsedMillis, operations * 1000L / elapsedMillis);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}